@@ -1,13 +1,36 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -18,13 +41,41 @@ public class AnkGit {
      * 
      */
     private CommitTree commitTree;
+    private Journal journal;
+    private MessageIndex messageIndex;
+    private boolean snapshotNeeded;
+    private BlobStore blobs;
+    private StatIndex index;
+    /* Staging area, loaded on first use and written back by save() if changed. */
+    private LinkedHashSet<String> staged;
+    private LinkedHashSet<String> removalStage;
+    private boolean stagingChanged;
     private final String ADDED_PATH = ".ankgit/currentlyAdded.ser";
     private final String REMOVE_PATH = ".ankgit/toRemove.ser";
     private final String COMMIT_HISTORY = ".ankgit/commitHistory/";
-    private static final String COMMIT_TREE_PATH = ".ankgit/commitTree.ser";
+    private static final String OBJECTS_PATH = ".ankgit/objects/";
+    private static final String INDEX_PATH = ".ankgit/index";
+    private static final String SNAPSHOT_PATH = ".ankgit/snapshot";
+    /* Where repositories from before SnapshotFile kept the Java serialized tree. */
+    private static final String LEGACY_TREE_PATH = ".ankgit/commitTree.ser";
+    private static final String JOURNAL_PATH = ".ankgit/journal";
+    private static final String MESSAGE_INDEX_PATH = ".ankgit/msgindex";
+    /* Where an unfinished gc left off sweeping stored file versions. */
+    private static final String GC_STATE_PATH = ".ankgit/gc-state";
+    /* Format of Commit.dateCommitted. */
+    private static final String COMMIT_DATE = "yyyy-MM-dd kk:mm:ss";
+    /* Journal length at which it is folded into a fresh snapshot. */
+    private static final int COMPACT_THRESHOLD = 1000;
+    /* Unchanged lines shown around each change by diff. */
+    private static final int DIFF_CONTEXT = 3;
+    /* Files larger than this are not merged by line; see merge. */
+    private static final long MAX_LINE_MERGE = 32L << 20;
+    /* mergeFile's result for a file whose working copy differs from the head commit's. */
+    private static final int UNCOMMITTED = -2;
     
     public AnkGit() {
         commitTree = null;
+        blobs = new BlobStore(getAbsolutePath(OBJECTS_PATH));
     }
     /** FILE IO */
     /**
@@ -86,105 +137,340 @@ public class AnkGit {
     }
     
     /**
-     * Reads a Serializable ArrayList from the given String path. 
-     * Useful extension of readObject.
+     * Loads the commit tree: opens the last snapshot, which reads commits only as they 
+     * are needed, and replays the journal of changes made since, then attaches the 
+     * journal so new changes get recorded.
+     * A repository still using the old serialized tree is converted to a snapshot 
+     * when the command finishes.
+     * @throws IOException if the snapshot cannot be read.
+     */
+    private void loadCommitTree() throws IOException {
+        if (new File(getAbsolutePath(SNAPSHOT_PATH)).exists()) {
+            Trace.Phase phase = Trace.phase("read snapshot");
+            try (phase) {
+                Trace.touched(1);
+                commitTree = SnapshotFile.read(getAbsolutePath(SNAPSHOT_PATH));
+                /* Older snapshots are read whole; rewrite them so they need not be. */
+                snapshotNeeded = !commitTree.isLazy();
+            } catch (IOException e) {
+                throw new IOException("File input failure when trying to read: " + SNAPSHOT_PATH, e);
+            }
+        } else {
+            Trace.Phase phase = Trace.phase("read legacy tree");
+            try (phase) {
+                Trace.readFile(getAbsolutePath(LEGACY_TREE_PATH));
+                commitTree = readLegacyCommitTree();
+            }
+            snapshotNeeded = true;
+        }
+        journal = new Journal(getAbsolutePath(JOURNAL_PATH));
+        Trace.Phase phase = Trace.phase("replay journal");
+        try (phase) {
+            Trace.readFile(getAbsolutePath(JOURNAL_PATH));
+            journal.replay(commitTree);
+        } catch (IOException e) {
+            System.out.println("File input failure when trying to read: " + JOURNAL_PATH);
+        }
+        commitTree.setJournal(journal);
+        messageIndex = new MessageIndex(getAbsolutePath(MESSAGE_INDEX_PATH));
+        commitTree.setMessageIndex(messageIndex);
+    }
+    
+    /**
+     * Reads a Java serialized tree. Serialization follows Commit.parent references 
+     * recursively, so this runs on a thread with a large stack to get through 
+     * long linear histories.
+     * @return the tree, or null if it could not be read.
+     */
+    private static CommitTree readLegacyCommitTree() {
+        final Object[] result = new Object[1];
+        Thread reader = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                result[0] = readObject(LEGACY_TREE_PATH);
+            }
+        }, "legacy-tree-reader", 1L << 30);
+        reader.start();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (CommitTree) result[0];
+    }
+    
+    /**
+     * Persists the changes made by this command. Normally only the new journal records 
+     * are appended; once the journal grows past COMPACT_THRESHOLD (or when a snapshot is 
+     * needed anyway) the whole tree is written as a new snapshot and the journal is 
+     * emptied. The snapshot is written next to the old one and moved over it, so a crash 
+     * leaves either the old snapshot plus the journal or the new one.
+     */
+    private void saveCommitTree() {
+        if (commitTree == null) {
+            return;
+        }
+        try {
+            /* Before the journal, so no commit's new message is saved but left unindexed. */
+            if (messageIndex != null) {
+                Trace.Phase phase = Trace.phase("write message index");
+                try (phase) {
+                    messageIndex.save();
+                }
+            }
+            if (journal == null || snapshotNeeded || journal.size() >= COMPACT_THRESHOLD) {
+                Trace.Phase phase = Trace.phase("write snapshot");
+                try (phase) {
+                    SnapshotFile.write(commitTree, getAbsolutePath(SNAPSHOT_PATH + ".tmp"));
+                    Trace.wroteFile(getAbsolutePath(SNAPSHOT_PATH + ".tmp"));
+                }
+                Files.move(Paths.get(getAbsolutePath(SNAPSHOT_PATH + ".tmp")), 
+                        Paths.get(getAbsolutePath(SNAPSHOT_PATH)), 
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshotNeeded = false;
+                if (journal != null) {
+                    journal.clear();
+                }
+                Files.deleteIfExists(Paths.get(getAbsolutePath(LEGACY_TREE_PATH)));
+            } else {
+                Trace.Phase phase = Trace.phase("append journal");
+                try (phase) {
+                    journal.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("File write failure when trying to write: " + SNAPSHOT_PATH);
+        }
+    }
+    
+    /**
+     * Returns the stat cache of working directory files, loading it on first use.
+     * @return the index.
+     */
+    private StatIndex getIndex() {
+        if (index == null) {
+            Trace.Phase phase = Trace.phase("read stat index");
+            try (phase) {
+                Trace.readFile(getAbsolutePath(INDEX_PATH));
+                index = new StatIndex(getAbsolutePath(INDEX_PATH));
+            }
+        }
+        return index;
+    }
+    
+    /** Writes the stat cache back if this command loaded and changed it. */
+    private void saveIndex() {
+        if (index == null) {
+            return;
+        }
+        Trace.Phase phase = Trace.phase("write stat index");
+        try (phase) {
+            index.save();
+            Trace.wroteFile(getAbsolutePath(INDEX_PATH));
+        } catch (IOException e) {
+            System.out.println("File write failure when trying to write: " + INDEX_PATH);
+        }
+    }
+    
+    /**
+     * Reads a staging set from the given String path. 
+     * Useful extension of readObject. A missing file is an empty set; 
+     * it is not created until something is staged. Files written before the 
+     * staging area was a set hold an ArrayList, which is converted.
      * @param path
-     * @return Arraylist read in from serialized object.
+     * @return set read in from serialized object.
      */
-    private static ArrayList<String> getArrayListFile(String path) {
+    @SuppressWarnings("unchecked")
+    private static LinkedHashSet<String> getStagingFile(String path) {
         File currentlyAdded = new File(getAbsolutePath(path));
-        ArrayList<String> staged = null;
         if (!currentlyAdded.exists()) {
-            staged = new ArrayList<String>();
-            writeObject(path, staged);
-        } else {
-            staged = (ArrayList<String>) readObject(path);
+            return new LinkedHashSet<String>();
+        }
+        Object o;
+        Trace.Phase phase = Trace.phase("read staging");
+        try (phase) {
+            Trace.readFile(currentlyAdded.getPath());
+            o = readObject(path);
+        }
+        if (o instanceof LinkedHashSet) {
+            return (LinkedHashSet<String>) o;
+        } else if (o instanceof Collection) {
+            return new LinkedHashSet<String>((Collection<String>) o);
+        }
+        return new LinkedHashSet<String>();
+    }
+    
+    /** @return files staged for the next commit. */
+    private LinkedHashSet<String> getStaged() {
+        if (staged == null) {
+            staged = getStagingFile(ADDED_PATH);
         }
         return staged;
     }
     
+    /** @return files marked for removal in the next commit. */
+    private LinkedHashSet<String> getRemovalStage() {
+        if (removalStage == null) {
+            removalStage = getStagingFile(REMOVE_PATH);
+        }
+        return removalStage;
+    }
+    
+    /** Writes the staging area back once, if this command changed it. */
+    private void saveStaging() {
+        if (stagingChanged) {
+            Trace.Phase phase = Trace.phase("write staging");
+            try (phase) {
+                writeObject(ADDED_PATH, getStaged());
+                writeObject(REMOVE_PATH, getRemovalStage());
+                Trace.wroteFile(getAbsolutePath(ADDED_PATH));
+                Trace.wroteFile(getAbsolutePath(REMOVE_PATH));
+            }
+            stagingChanged = false;
+        }
+    }
+    
     private static String getAbsolutePath(String fileName) {
         return System.getProperty("user.dir") + "/" + fileName;
     }
     
     /**
-     * Checks whether a file exists. If it does and it does not 
-     * exist in the latest commit, then it is added to a list of files 
+     * Stages every file the given paths stand for. A path can be a file, a directory
+     * (all files below it) or a glob. For each file that does not 
+     * exist in the latest commit, it is added to the set of files 
      * to be added to the next commit. If it exists but also exists in the
-     * latest commit, then the version of the file from the latest commit 
-     * and the working directory version are bytewise compared and 
-     * if there's a difference, the file is added.
-     * @param fileName
-     * @throws IOException
+     * latest commit, then the working directory version's hash is compared to 
+     * the blob hash recorded in the latest commit; if there's a difference, the 
+     * file is added. A size different from the stored version's decides without 
+     * reading anything; otherwise the hash comes from the stat index when the 
+     * file's size, mtime and inode are unchanged, and is only computed (streaming, 
+     * in bounded memory) when they moved. Directories are walked and files compared
+     * in parallel; the staging area is written once, when the command ends.
+     * @param paths
      */
-    private void addFile(String fileName) throws IOException {
-        File added = new File(getAbsolutePath(fileName));
-        if (!added.exists()) {
-            System.out.println("File does not exist.");
-            return;
-        } else if (commitTree.getHeadCommit().containsFile(fileName)) {
-            String oldID = commitTree.getHeadCommit().getFileLastLocation(fileName);
-            Path curPath = Paths.get(getAbsolutePath(fileName));
-            byte[] newData = Files.readAllBytes(curPath);
-            Path oldPath = Paths.get(COMMIT_HISTORY + oldID + "/" + fileName);
-            byte[] oldData = Files.readAllBytes(oldPath);
-            if (Arrays.equals(oldData, newData)) {
+    private void addFiles(List<String> paths) {
+        FileWalker walker = new FileWalker(Paths.get(getAbsolutePath("")), 
+                Materializer.defaultParallelism());
+        ArrayList<String> candidates = new ArrayList<String>();
+        for (String path : paths) {
+            List<String> files = walker.expand(path);
+            if (files.isEmpty()) {
+                if (FileWalker.isGlob(path)) {
+                    System.out.println("No files match " + path + ".");
+                } else {
+                    System.out.println("File does not exist.");
+                }
+            } else if (files.size() == 1 && files.get(0).equals(path)) {
+                candidates.add(path);
+            } else {
+                candidates.addAll(files);
+            }
+        }
+        boolean[] modified = findModified(candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            if (modified[i]) {
+                getStaged().add(candidates.get(i));
+                stagingChanged = true;
+            } else if (paths.contains(candidates.get(i))) {
                 System.out.println("File has not been modified since the last commit.");
-                return;
             }
         }
-        ArrayList<String> staged = getArrayListFile(ADDED_PATH);
-        staged.add(fileName);
-        writeObject(ADDED_PATH, staged);
     }
     
     /**
-     * Checks if a file is staged, and if it is, it removes 
-     * it from the staged list. Otherwise, checks to see whether
-     * the latest commit has the file, and, if it does,
-     * the file is marked for removal in the next commit.
-     * @param fileName
+     * Compares working directory files with their versions in the latest commit, 
+     * several at a time.
+     * @param fileNames
+     * @return for each file, whether it is new or differs from the latest commit.
      */
-    private void remove(String fileName) {
-        ArrayList<String> staged = getArrayListFile(ADDED_PATH);
-        ArrayList<String> removalStage = getArrayListFile(REMOVE_PATH);
-        if (staged.contains(fileName)) {
-            staged.remove(fileName);
-            removalStage.add(fileName);
-        } else if (commitTree.getHeadCommit().containsFile(fileName)) {
-            removalStage.add(fileName);
-        } else {
-            System.out.println("No reason to remove the file.");
-            return;
+    private boolean[] findModified(final List<String> fileNames) {
+        final boolean[] modified = new boolean[fileNames.size()];
+        final Commit head = commitTree.getHeadCommit();
+        final StatIndex stats = getIndex();
+        int threads = Math.min(Materializer.defaultParallelism(), fileNames.size());
+        if (threads <= 1) {
+            for (int i = 0; i < modified.length; i++) {
+                modified[i] = isModified(head, stats, fileNames.get(i));
+            }
+            return modified;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            int chunk = (modified.length + threads * 4 - 1) / (threads * 4);
+            for (int start = 0; start < modified.length; start += chunk) {
+                final int from = start;
+                final int to = Math.min(modified.length, start + chunk);
+                pending.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            modified[i] = isModified(head, stats, fileNames.get(i));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return modified;
+    }
+    
+    /** Returns true unless head has the file with exactly its current content. */
+    private boolean isModified(Commit head, StatIndex stats, String fileName) {
+        String oldHash = head.getFileLastLocation(fileName);
+        if (oldHash == null) {
+            return true;
+        }
+        Path curPath = Paths.get(getAbsolutePath(fileName));
+        try {
+            return Files.size(curPath) != blobs.size(oldHash) 
+                    || !stats.hash(fileName, curPath).equals(oldHash);
+        } catch (IOException e) {
+            return true;
         }
-        writeObject(ADDED_PATH, staged);
-        writeObject(REMOVE_PATH, removalStage);
     }
     
     /**
-     * Helper method for makeCommit. Identifies the folder paths 
-     * inside file names to create directories.
-     * @param s
-     * @return String of the file name with only the additional folder path. 
-     * ("test/test1/t.txt" -> "test/test1/")
+     * Checks if a file is staged, and if it is, it removes 
+     * it from the staged set. Otherwise, checks to see whether
+     * the latest commit has the file, and, if it does,
+     * the file is marked for removal in the next commit. Each path may also be 
+     * a directory or a glob, standing for the tracked and staged files it matches.
+     * @param paths
      */
-    private String extractFolderPath(String s) {
-        int n = s.length() - 1;
-        for (int i = n; i >= 0; i--) {
-            char c = s.charAt(i);
-            if (c == '/') {
-                return s.substring(0, i + 1);    
+    private void remove(List<String> paths) {
+        LinkedHashSet<String> known = new LinkedHashSet<String>(getStaged());
+        known.addAll(commitTree.getHeadCommit().getFileHistory().keySet());
+        for (String path : paths) {
+            List<String> fileNames = FileWalker.select(path, known);
+            if (fileNames.isEmpty()) {
+                System.out.println("No reason to remove the file.");
+            }
+            for (String fileName : fileNames) {
+                getStaged().remove(fileName);
+                getRemovalStage().add(fileName);
+                stagingChanged = true;
             }
         }
-        return "";
     }
     
     /**
      * Creates a new commit, adding in the working directory's versions  
      * of the added files.Removes the files staged for removal from the 
      * inherited file list of the commit. Versions of these added  
-     * files are put into ".ankgit/commitHistory/COMMITID/*" Lots of file 
-     * system bookkeeping to ensure that folders work.
+     * files are put into the blob store, which keeps a single copy of 
+     * each distinct content, and the commit records their hashes.
      * @param message
      */
     private void makeCommit(String message) {
@@ -192,40 +478,35 @@ public class AnkGit {
             System.out.println("Please enter a commit message.");
             return;
         }
-        ArrayList<String> staged = getArrayListFile(ADDED_PATH);
-        ArrayList<String> removalStage = getArrayListFile(REMOVE_PATH);
+        LinkedHashSet<String> staged = getStaged();
+        LinkedHashSet<String> removalStage = getRemovalStage();
         if (staged.size() == 0 && removalStage.size() == 0) {
             System.out.println("No changes added to the commit.");
             return;
         }
         commitTree.lastcommitID += 1;
-        String commitID = Integer.toString(commitTree.lastcommitID);
-        HashMap<String, String> contained = new HashMap<String, String>();
-        contained.putAll(commitTree.getHeadCommit().fileHistory);
-        for (String s: staged) {
-            contained.put(s, commitID);
-        }
-        for (String s: removalStage) {
-            contained.remove(s);
-        }
-        new File(getAbsolutePath(COMMIT_HISTORY + commitID + "/")).mkdirs();
+        long commitID = commitTree.lastcommitID;
+        Manifest contained = commitTree.getHeadCommit().getFileHistory();
         for (String fileName : staged) {
-            String deepPath = extractFolderPath(fileName);
-            if (!deepPath.equals("")) {
-                new File(getAbsolutePath(COMMIT_HISTORY + commitID + "/" + deepPath)).mkdirs();
-            }
             Path current = Paths.get(getAbsolutePath(fileName));
-            Path newCommit = Paths.get(getAbsolutePath(COMMIT_HISTORY + commitID + "/" + fileName));
             try {
-                Files.copy(current, newCommit);
+                String hash = getIndex().hash(fileName, current);
+                String previous = contained.get(fileName);
+                if (previous != null && blobs.checkLink(current, previous, hash)) {
+                    System.out.println("Warning: " + fileName + " was edited in place while "
+                            + "hard linked to its stored version, which is now lost.");
+                }
+                contained = contained.with(fileName, blobs.store(current, hash));
             } catch (IOException e) {
-                System.out.println(current.toString() + " " + newCommit.toString());
+                System.out.println("Could not store " + current.toString());
             }
         }
+        for (String s: removalStage) {
+            contained = contained.without(s);
+        }
         staged.clear();
         removalStage.clear();
-        writeObject(ADDED_PATH, staged);
-        writeObject(REMOVE_PATH, removalStage);
+        stagingChanged = true;
         Commit newCommit = new Commit(commitID, message, commitTree.getHeadCommit(), contained);
         commitTree.addCommit(newCommit);
     }
@@ -234,37 +515,76 @@ public class AnkGit {
      * Starting at the current head pointer, displays information about each commit backwards 
      * along the commit tree until the initial commit.
      * For every node in this history, the information it should display is the commit id, the 
-     * time the commit was made, and the commit message. 
-     * @return String containing normal log.
+     * time the commit was made, and the commit message. Commits are written out as they are
+     * reached, so "log -n 20" only ever visits 20 commits.
+     * @param options -n, --since and --until, as read by LogFilter.
      */
-    private String log() {
-        Commit c = commitTree.getHeadCommit();
-        StringBuilder log = new StringBuilder();
-        while (c != null) {
-            log.append("====\nCommit ");
-            log.append(c.commitID + ".\n");
-            log.append(c.dateCommitted + "\n");
-            log.append(c.commitMessage + "\n\n");
-            c = c.parent;
-        }
-        return log.toString();
+    private void log(List<String> options) {
+        final Commit head = commitTree.getHeadCommit();
+        printLog(new Iterable<Commit>() {
+            @Override
+            public Iterator<Commit> iterator() {
+                return new Iterator<Commit>() {
+                    private Commit next = head;
+                    
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+                    
+                    @Override
+                    public Commit next() {
+                        Commit c = next;
+                        next = c.getParent();
+                        return c;
+                    }
+                };
+            }
+        }, options);
     }
     
     /**
      * Same functionality as log, but for all commits throughout the history 
-     * of the version control system.
-     * @return String containing global log.
+     * of the version control system, newest first.
+     * @param options -n, --since and --until, as read by LogFilter.
      */
-    private String globalLog() {
-        StringBuilder log = new StringBuilder();
-        for (Commit c : commitTree.getAllCommits()) {
-            log.append("====\nCommit ");
-            log.append(c.commitID + ".\n");
-            log.append(c.dateCommitted + "\n");
-            log.append(c.commitMessage + "\n\n");
-            c = c.parent;
+    private void globalLog(List<String> options) {
+        printLog(commitTree.newestFirst(), options);
+    }
+    
+    /**
+     * Streams log entries for the given commits to System.out through a buffered writer.
+     * @param commits in the order to show them; newer commits always come first.
+     * @param options
+     */
+    private void printLog(Iterable<Commit> commits, List<String> options) {
+        LogFilter filter;
+        try {
+            filter = new LogFilter(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            long shown = 0;
+            for (Commit c : commits) {
+                if (shown >= filter.getLimit() || filter.isTooOld(c)) {
+                    break;
+                } else if (filter.isTooNew(c)) {
+                    continue;
+                }
+                out.write("====\nCommit ");
+                out.write(c.commitID + ".\n");
+                out.write(c.dateCommitted + "\n");
+                out.write(c.commitMessage + "\n\n");
+                shown += 1;
+            }
+            out.write("\n");
+            out.flush();
+        } catch (IOException e) {
+            return;
         }
-        return log.toString();
     }
     
     /**
@@ -283,13 +603,11 @@ public class AnkGit {
             }
         }
         status.append("=== Staged Files ===\n");
-        ArrayList<String> added = getArrayListFile(ADDED_PATH);
-        for (String fileName : added) {
+        for (String fileName : getStaged()) {
             status.append(fileName + "\n");
         }
         status.append("=== Files Marked for Removal ===\n");
-        ArrayList<String> removed = getArrayListFile(REMOVE_PATH);
-        for (String fileName : removed) {
+        for (String fileName : getRemovalStage()) {
             status.append(fileName + "\n");
         }
         status.deleteCharAt(status.length() - 1);
@@ -303,7 +621,7 @@ public class AnkGit {
      */
     private void find(String commitMessage) {
         if (commitTree.containsCommitMessage(commitMessage)) {
-            for (String id : commitTree.getMatchingIDs(commitMessage)) {
+            for (long id : commitTree.getMatchingIDs(commitMessage)) {
                 System.out.println(id);
             }
         } else {
@@ -313,10 +631,193 @@ public class AnkGit {
     }
     
     /**
-     * Case 1: checking out a branch - for all files in a given branch, copies the versions 
-     * from the given branch's head into the working directory.
+     * Prints the IDs of all commits whose messages match every option given:
+     * "--contains TEXT" (the exact text anywhere in the message), "--regex RE" (a
+     * match of the regular expression anywhere in it) and "--words TEXT" (each word
+     * of TEXT as a whole word, ignoring case). Options may be repeated.
+     * @param options
+     */
+    private void find(List<String> options) {
+        MessageIndex.Query query = new MessageIndex.Query();
+        for (int i = 0; i < options.size(); i += 2) {
+            if (i + 1 >= options.size()) {
+                System.out.println(options.get(i) + " needs a value.");
+                return;
+            }
+            String value = options.get(i + 1);
+            switch (options.get(i)) {
+                case "--contains":
+                    query.addSubstring(value);
+                    break;
+                case "--regex":
+                    try {
+                        query.addRegex(value);
+                    } catch (PatternSyntaxException e) {
+                        System.out.println("Invalid regular expression: " + e.getDescription());
+                        return;
+                    }
+                    break;
+                case "--words":
+                    query.addWords(value);
+                    break;
+                default:
+                    System.out.println("Unknown option " + options.get(i) + ".");
+                    return;
+            }
+        }
+        List<Long> ids;
+        try {
+            ids = messageIndex.search(commitTree, query);
+        } catch (IOException e) {
+            System.out.println("File input failure when trying to read: " + MESSAGE_INDEX_PATH);
+            return;
+        }
+        if (ids.isEmpty()) {
+            System.out.println("Found no commit with that message.");
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (long id : ids) {
+            out.append(id).append('\n');
+        }
+        System.out.print(out);
+    }
+    
+    /**
+     * Prints the changes between two versions of the tracked files in unified format. 
+     * Each version is a commit ID, a branch name (its head), "--staged" (what the next 
+     * commit would contain) or "--working" (the working directory); the first defaults 
+     * to the head commit and the second to the working directory, except that "--staged" 
+     * alone is compared with the head commit. Files whose hashes are the same in both 
+     * are skipped without being read, binary files are only reported with their sizes, 
+     * and the output is written as it is produced.
+     * @param versions
+     */
+    private void diff(List<String> versions) {
+        if (versions.size() > 2) {
+            System.out.println("Please give at most two versions to compare.");
+            return;
+        }
+        Manifest from = commitTree.getHeadCommit().getFileHistory();
+        Manifest to;
+        if (versions.size() == 1 && versions.get(0).equals("--staged")) {
+            to = resolveVersion("--staged");
+        } else {
+            if (versions.size() > 0) {
+                from = resolveVersion(versions.get(0));
+            }
+            to = resolveVersion(versions.size() > 1 ? versions.get(1) : "--working");
+        }
+        if (from == null || to == null) {
+            System.out.println("No commit or branch with that name exists.");
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        try {
+            try {
+                for (Map.Entry<String, String> change
+                        : new TreeMap<String, String>(Manifest.changes(from, to)).entrySet()) {
+                    String fileName = change.getKey();
+                    diffFile(out, fileName, from.get(fileName), change.getValue());
+                }
+            } catch (IOException e) {
+                /* Through out, so it follows the hunks already buffered there. */
+                out.write(("Could not read " + e.getMessage() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // System.out never throws; nothing is left to report to
+        }
+    }
+    
+    /**
+     * @param version as given to diff.
+     * @return the files of that version, or null if there is no such commit or branch.
+     */
+    private Manifest resolveVersion(String version) {
+        if (version.equals("--working") || version.equals("--staged")) {
+            return workingFiles(version.equals("--staged"));
+        } else if (commitTree.containsBranch(version)) {
+            return commitTree.getBranchHead(version).getFileHistory();
+        }
+        Commit c = commitTree.getCommitWithID(parseCommitID(version));
+        return c == null ? null : c.getFileHistory();
+    }
+    
+    /**
+     * Hashes the tracked files in the working directory (through the stat index, so 
+     * unchanged files are not read) into a manifest.
+     * @param stagedOnly if true, only staged files are taken from the working directory 
+     * and files marked for removal are left out, giving what commit would record.
+     */
+    private Manifest workingFiles(boolean stagedOnly) {
+        Manifest files = commitTree.getHeadCommit().getFileHistory();
+        LinkedHashSet<String> names = new LinkedHashSet<String>(getStaged());
+        if (!stagedOnly) {
+            names.addAll(files.keySet());
+        }
+        StatIndex stats = getIndex();
+        for (String fileName : names) {
+            Path file = Paths.get(getAbsolutePath(fileName));
+            try {
+                files = files.with(fileName, stats.hash(fileName, file));
+            } catch (IOException e) {
+                files = files.without(fileName);
+            }
+        }
+        if (stagedOnly) {
+            for (String fileName : getRemovalStage()) {
+                files = files.without(fileName);
+            }
+        }
+        return files;
+    }
+    
+    /** Writes the diff of one file between two hashes, either of which may be null. */
+    private void diffFile(OutputStream out, String fileName, String fromHash, String toHash) 
+            throws IOException {
+        byte[] before = fromHash == null ? new byte[0] : readVersion(fileName, fromHash);
+        byte[] after = toHash == null ? new byte[0] : readVersion(fileName, toHash);
+        String header = "diff --ankgit a/" + fileName + " b/" + fileName + "\n";
+        if (!LineDiff.isText(before) || !LineDiff.isText(after)) {
+            header += "Binary files " + (fromHash == null ? "/dev/null" : "a/" + fileName) 
+                    + " and " + (toHash == null ? "/dev/null" : "b/" + fileName) 
+                    + " differ (" + before.length + " bytes -> " + after.length + " bytes)\n";
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        header += "--- " + (fromHash == null ? "/dev/null" : "a/" + fileName) + "\n"
+                + "+++ " + (toHash == null ? "/dev/null" : "b/" + fileName) + "\n";
+        out.write(header.getBytes(StandardCharsets.UTF_8));
+        LineDiff.Lines a = new LineDiff.Lines(before);
+        LineDiff.Lines b = new LineDiff.Lines(after);
+        LineDiff.writeUnified(a, b, LineDiff.diff(a, b), DIFF_CONTEXT, out);
+    }
+    
+    /**
+     * Reads a version of a file: from the blob store if it has been committed, otherwise 
+     * from the working directory, where it was hashed by workingFiles.
+     */
+    private byte[] readVersion(String fileName, String hash) throws IOException {
+        if (blobs.contains(hash)) {
+            return readBlob(hash);
+        }
+        try {
+            return Files.readAllBytes(Paths.get(getAbsolutePath(fileName)));
+        } catch (IOException e) {
+            throw new IOException(fileName, e);
+        }
+    }
+    
+    /**
+     * Case 1: checking out a branch - brings the working directory from the current head's 
+     * files to the given branch head's files, writing only the files whose versions differ 
+     * and deleting the ones the branch does not track.
      * Case 2: checking out a file - checks whether the file exists in the head commit. 
      * If it does, copies version from that commit into working directory
+     * Case 3: checking out a directory - copies every file the head commit has below it.
      * @param fileOrBranch
      */
     private void checkout(String fileOrBranch) {
@@ -326,12 +827,10 @@ public class AnkGit {
                 return;
             }
             Commit branchHead = commitTree.getBranchHead(fileOrBranch);
-            for (String fileName : branchHead.fileHistory.keySet()) {
-                String commitID = branchHead.fileHistory.get(fileName);
-                checkout(commitID, fileName);
-            }
+            updateWorkingDirectory(commitTree.getHeadCommit().getFileHistory(), branchHead.getFileHistory());
             commitTree.setCurrentBranch(fileOrBranch);
-        } else if (commitTree.getHeadCommit().containsFile(fileOrBranch)) {
+        } else if (commitTree.getHeadCommit().containsFile(fileOrBranch)
+                || !commitTree.getHeadCommit().getFileHistory().under(fileOrBranch).isEmpty()) {
             checkout(commitTree.getHeadCommit().commitID, fileOrBranch);
         } else {
             System.out.println("File does not exist in the most recent commit"
@@ -341,22 +840,25 @@ public class AnkGit {
     
     /**
      * Checks whether the file exists in the given commit. If it does, copies version from that 
-     * commit into working directory.
+     * commit into working directory. If fileName is a directory of the commit instead, 
+     * copies all of the commit's files below it; files it does not track are left alone.
      * @param commitID
      * @param fileName
      */
-    private void checkout(String commitID, String fileName) {
+    private void checkout(long commitID, String fileName) {
         Commit c = commitTree.getCommitWithID(commitID);
         if (c == null) {
             System.out.println("No commit with that id exists.");
         } else if (!c.containsFile(fileName)) {
-            System.out.println("File does not exist in that commit.");
+            Manifest directory = c.getFileHistory().under(fileName);
+            if (directory.isEmpty()) {
+                System.out.println("File does not exist in that commit.");
+            } else {
+                materialize(directory);
+            }
         } else {
-            Path source = Paths.get(getAbsolutePath(".ankgit/commitHistory/"  
-                         + c.fileHistory.get(fileName) + "/" + fileName));
-            Path target = Paths.get(getAbsolutePath(fileName));
             try {
-                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                writeWorkingFile(fileName, c.getFileHistory().get(fileName));
             } catch (IOException e) {
                 System.out.println("Copy error");
             }
@@ -364,6 +866,62 @@ public class AnkGit {
         
     }
     
+    /**
+     * Copies the blob with the given hash to fileName in the working directory and 
+     * records it in the stat index.
+     * @param fileName
+     * @param hash
+     * @throws IOException
+     */
+    private void writeWorkingFile(String fileName, String hash) throws IOException {
+        Path target = Paths.get(getAbsolutePath(fileName));
+        blobs.copyTo(hash, target);
+        getIndex().update(fileName, target, hash);
+    }
+    
+    /**
+     * Changes the working directory from the files of one commit to those of another. 
+     * Only files whose versions differ between the two are touched: they are written, 
+     * or deleted if the second commit does not have them. Shared parts of the two 
+     * manifests are skipped by Manifest.diff, so the work follows the size of the change.
+     * @param from files of the commit the working directory currently reflects.
+     * @param to files of the commit to switch to.
+     */
+    private void updateWorkingDirectory(Manifest from, Manifest to) {
+        materialize(Manifest.changes(from, to));
+    }
+    
+    /**
+     * Writes (or, for null hashes, deletes) working directory files in parallel through 
+     * a Materializer and records the results in the stat index. Files that fail are 
+     * listed; the rest are still written.
+     * @param changes file name to the hash of its new content, or null to delete it.
+     */
+    private void materialize(Map<String, String> changes) {
+        Materializer materializer = new Materializer(blobs, Materializer.defaultParallelism());
+        Map<String, IOException> failures;
+        Trace.Phase phase = Trace.phase("write working files");
+        try (phase) {
+            failures = materializer.apply(Paths.get(getAbsolutePath("")), changes);
+        }
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String fileName = change.getKey();
+            if (failures.containsKey(fileName)) {
+                System.out.println("Could not write " + fileName + ": " 
+                        + failures.get(fileName).getMessage());
+            } else if (change.getValue() == null) {
+                getIndex().remove(fileName);
+            } else {
+                try {
+                    getIndex().update(fileName, Paths.get(getAbsolutePath(fileName)), 
+                            change.getValue());
+                } catch (IOException e) {
+                    getIndex().remove(fileName);
+                }
+            }
+        }
+    }
+    
     /**
      * Creates a new branch with the given branchName. This involves the creation of a 
      * new Head pointer and updates in the commitTree, which are abstracted
@@ -392,16 +950,15 @@ public class AnkGit {
     }
     
     /**
-     * Restores all files to their versions in the commit with the given id. Also moves the current 
+     * Restores all files to their versions in the commit with the given id, touching only 
+     * the files that differ from the current head. Also moves the current 
      * branch's head to that commit node.
      * @param resetID
      */
-    private void reset(String resetID) {
+    private void reset(long resetID) {
         if (commitTree.containsCommit(resetID)) {
             Commit resetC = commitTree.getCommitWithID(resetID);
-            for (String fileName : resetC.fileHistory.keySet()) {
-                checkout(resetID, fileName);
-            }
+            updateWorkingDirectory(commitTree.getHeadCommit().getFileHistory(), resetC.getFileHistory());
             commitTree.setBranchHead(commitTree.getCurrentBranch(), resetID);
         } else {
             System.out.println("No commit with that id exists.");
@@ -410,64 +967,204 @@ public class AnkGit {
     
     /**
      * Merges files from the head of the given branch into the head of the current branch. 
+     * A file counts as modified on a branch when its blob hash differs from the one 
+     * recorded at the split point.
      * 1. Files that are modified in the given branch but not in the current branch since 
      * the split point are changed to their versions in the given branch.
-     * 2. files that have been modified in both branches since the split point should stay 
-     * as they are in the current branch. However, a conflicted copy from the given branch
-     * is added to this commit.
+     * 2. Files that have been modified in both branches since the split point are merged 
+     * line by line against their split point version (see LineMerge), several at a time. 
+     * Changes to different lines are combined; lines both branches changed differently 
+     * are marked as a conflict in the file, and each conflicted file is reported. Binary 
+     * files, files over MAX_LINE_MERGE and files with uncommitted changes stay as they 
+     * are in the working directory, with a conflicted copy from the given branch added 
+     * next to them.
      * @param branchName
      */
     private void merge(String branchName) {
         if (branchName.equals(commitTree.getCurrentBranch())) {
             System.out.println("Cannot merge a branch with itself.");
+            return;
         } else if (!commitTree.containsBranch(branchName)) {
             System.out.println("A branch with that name does not exist.");
+            return;
         }
         Commit otherHead = commitTree.getBranchHead(branchName);
         Commit thisHead = commitTree.getHeadCommit();
         Commit splitPoint = commitTree.findSplitPoint(commitTree.getCurrentBranch(), branchName);
-        int splitID = Integer.parseInt(splitPoint.commitID);
-        for (String file : otherHead.fileHistory.keySet()) {
-            int cID = Integer.parseInt(otherHead.fileHistory.get(file));
-            if (cID > splitID) {
-                Path source = Paths.get(".ankgit/commitHistory/" 
-                      + otherHead.commitID + "/" + file);
-                Path target;
-                if (thisHead.fileHistory.keySet().contains(file) 
-                          && Integer.parseInt(thisHead.fileHistory.get(file)) > splitID) {
-                    target = Paths.get(file + ".conflicted");
+        HashMap<String, String> otherChanges = 
+                Manifest.changes(splitPoint.getFileHistory(), otherHead.getFileHistory());
+        HashMap<String, String> writes = new HashMap<String, String>();
+        ArrayList<String> bothChanged = new ArrayList<String>();
+        for (Map.Entry<String, String> change : otherChanges.entrySet()) {
+            String file = change.getKey();
+            String otherHash = change.getValue();
+            String splitHash = splitPoint.getFileHistory().get(file);
+            if (otherHash != null) {
+                String thisHash = thisHead.getFileHistory().get(file);
+                if (otherHash.equals(thisHash)) {
+                    continue;
+                }
+                if (thisHash != null && !thisHash.equals(splitHash)) {
+                    bothChanged.add(file);
                 } else {
-                    target = Paths.get(file);
+                    writes.put(file, otherHash);
                 }
-                try {
-                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    e.printStackTrace();
+            }
+        }
+        Collections.sort(bothChanged);
+        int[] conflicts = mergeLines(bothChanged, splitPoint, thisHead, otherHead, branchName);
+        for (int i = 0; i < conflicts.length; i++) {
+            String file = bothChanged.get(i);
+            if (conflicts[i] < 0) {
+                if (conflicts[i] == UNCOMMITTED) {
+                    System.out.println("Not merging " + file + ": it has uncommitted changes.");
                 }
+                writes.put(file + ".conflicted", otherHead.getFileHistory().get(file));
+            } else if (conflicts[i] > 0) {
+                System.out.println("Conflict in " + file + ".");
             }
         }
+        materialize(writes);
     }
     
-    /** Propogates changes from one head to another for usage with */
-    private void propogateChanges(Commit changeFrom, Commit changeTo, String splitPoint) {
-        for (String fileName : changeTo.fileHistory.keySet()) {
-            String lastEditedID = commitTree.getHeadCommit().fileHistory.get(fileName);
-            if (Integer.parseInt(lastEditedID) <= Integer.parseInt(splitPoint)) {
-                if (changeFrom.containsFile(fileName)) {
-                    String lastEdited = changeFrom.fileHistory.get(fileName);
-                    if (Integer.parseInt(lastEdited) > Integer.parseInt(splitPoint)) {
-                        commitTree.getHeadCommit().fileHistory.put(fileName, lastEdited);
-                        checkout(lastEdited, fileName);
+    /**
+     * Merges each file's versions in two commits against its version at their split 
+     * point, writing the results to the working directory, on up to 
+     * Materializer.defaultParallelism() threads.
+     * @return for each file, the number of conflicts left in it, UNCOMMITTED if it was not 
+     * merged because its working copy is not the current head's version, or -1 if it 
+     * was not merged because it is binary, too large or could not be read.
+     */
+    private int[] mergeLines(final List<String> fileNames, final Commit splitPoint, 
+            final Commit thisHead, final Commit otherHead, final String branchName) {
+        final int[] conflicts = new int[fileNames.size()];
+        if (conflicts.length == 0) {
+            return conflicts;
+        }
+        final StatIndex stats = getIndex();
+        final String currentBranch = commitTree.getCurrentBranch();
+        int threads = Math.max(1, Math.min(Materializer.defaultParallelism(), fileNames.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Trace.Phase phase = Trace.phase("merge lines");
+        try (phase) {
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            for (int i = 0; i < conflicts.length; i++) {
+                final int at = i;
+                pending.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        String file = fileNames.get(at);
+                        conflicts[at] = mergeFile(file, splitPoint.getFileHistory().get(file), 
+                                thisHead.getFileHistory().get(file), otherHead.getFileHistory().get(file),
+                                stats, currentBranch, branchName);
                     }
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return conflicts;
+    }
+    
+    /** Merges one file for mergeLines. */
+    private int mergeFile(String fileName, String baseHash, String thisHash, String otherHash, 
+            StatIndex stats, String thisLabel, String otherLabel) {
+        try {
+            Path target = Paths.get(getAbsolutePath(fileName));
+            if (!Files.isRegularFile(target) || !thisHash.equals(stats.hash(fileName, target))) {
+                return UNCOMMITTED;
+            }
+            if ((baseHash != null && blobs.size(baseHash) > MAX_LINE_MERGE) 
+                    || blobs.size(thisHash) > MAX_LINE_MERGE 
+                    || blobs.size(otherHash) > MAX_LINE_MERGE) {
+                return -1;
+            }
+            byte[] base = baseHash == null ? new byte[0] : readBlob(baseHash);
+            byte[] ours = readBlob(thisHash);
+            byte[] theirs = readBlob(otherHash);
+            if (!LineDiff.isText(base) || !LineDiff.isText(ours) || !LineDiff.isText(theirs)) {
+                return -1;
+            }
+            LineMerge.Result result = LineMerge.merge(base, ours, theirs, thisLabel, otherLabel);
+            if (!Arrays.equals(result.content, ours)) {
+                /* A new file, not a write through a link to the stored version. */
+                Files.deleteIfExists(target);
+                Files.write(target, result.content);
+                Trace.wrote(result.content.length);
+                Trace.touched(1);
+                stats.update(fileName, target, BlobStore.hash(result.content));
+            }
+            return result.conflicts;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    private byte[] readBlob(String hash) throws IOException {
+        try (InputStream in = blobs.open(hash)) {
+            byte[] bytes = in.readAllBytes();
+            Trace.read(bytes.length);
+            return bytes;
+        }
+    }
+    
+    /**
+     * Propogates changes from one head to another for usage with rebase. Files that 
+     * a replayed commit still has at their split point version, but that the other 
+     * branch modified since the split point (otherChanges, as given by Manifest.changes), 
+     * take the other branch's version. Each commit's files are derived from the files 
+     * already computed for its replayed parent, applying only what the original commit 
+     * changed, so the whole replay costs as much as the changes it carries.
+     * @param originals commits to replay, oldest first; the first is a child of split.
+     * @param split
+     * @param otherChanges
+     * @return the files of each replayed commit, in the same order.
+     */
+    private Manifest[] propogateChanges(List<Commit> originals, Commit split, 
+            HashMap<String, String> otherChanges) {
+        Manifest files = split.getFileHistory();
+        for (Map.Entry<String, String> change : otherChanges.entrySet()) {
+            if (change.getValue() != null && files.get(change.getKey()) != null) {
+                files = files.with(change.getKey(), change.getValue());
+            }
+        }
+        Manifest[] replayed = new Manifest[originals.size()];
+        Manifest previous = split.getFileHistory();
+        for (int i = 0; i < replayed.length; i++) {
+            Manifest current = originals.get(i).getFileHistory();
+            for (Map.Entry<String, String> change : Manifest.changes(previous, current).entrySet()) {
+                String fileName = change.getKey();
+                String hash = change.getValue();
+                if (hash == null) {
+                    files = files.without(fileName);
+                } else if (hash.equals(split.getFileHistory().get(fileName)) 
+                        && otherChanges.get(fileName) != null) {
+                    files = files.with(fileName, otherChanges.get(fileName));
+                } else {
+                    files = files.with(fileName, hash);
                 }
             }
+            replayed[i] = files;
+            previous = current;
         }
+        return replayed;
     }
     
     /**
      * Rebase finds the split point, and then makes defensive copies of the current branch
      * and then attaches it to the end of the given branch, while propogating updated copies
-     * of files from the given branch forward.
+     * of files from the given branch forward. Only the files that end up different from 
+     * the current head are written to the working directory, once.
      * @param branchName
      */
     private void reBase(String branchName) {
@@ -480,34 +1177,35 @@ public class AnkGit {
         } else {
             Commit split = commitTree.findSplitPoint(commitTree.getCurrentBranch(), branchName);
             Commit otherHead = commitTree.getBranchHead(branchName);
-            if (split.commitID.equals(otherHead.commitID)) {
+            Commit oldHead = commitTree.getHeadCommit();
+            if (split.commitID == otherHead.commitID) {
                 System.out.println("Already up-to-date.");
                 return;
-            } else if (split.commitID.equals(commitTree.getHeadCommit().commitID)) {
+            } else if (split.commitID == oldHead.commitID) {
                 commitTree.setBranchHead(commitTree.getCurrentBranch(), otherHead.commitID);
                 return;
             }
+            ArrayList<Commit> originals = new ArrayList<Commit>();
+            for (Commit c = oldHead; c != null && c.commitID != split.commitID; c = c.getParent()) {
+                originals.add(c);
+            }
+            Collections.reverse(originals);
+            Manifest[] files = propogateChanges(originals, split, 
+                    Manifest.changes(split.getFileHistory(), otherHead.getFileHistory()));
             /* Create a copy of the branch with new commit IDs. */
-            Commit oldHeadC = commitTree.getHeadCommit();
-            Commit replayedC = new Commit(oldHeadC);
-            ArrayList<Commit> replayed = new ArrayList<Commit>();
-            replayed.add(0, replayedC);
-            while (oldHeadC.parent != null && !oldHeadC.parent.commitID.equals(split.commitID)) {
-                Commit prev = replayedC;
-                oldHeadC = oldHeadC.parent;
-                replayedC = new Commit(oldHeadC);
-                replayed.add(0, replayedC);
-                prev.parent = replayedC;
-            }
-            for (Commit c : replayed) {
-                commitTree.lastcommitID += 1;
-                c.commitID = Integer.toString(commitTree.lastcommitID);
-                propogateChanges(otherHead, c, split.commitID);
-                commitTree.addCommit(c);
-            }
-            String headID = replayed.get(replayed.size() - 1).commitID;
-            commitTree.setBranchHead(commitTree.getCurrentBranch(), headID);
-            replayedC.parent = otherHead;
+            ArrayList<Commit> replayed = new ArrayList<Commit>(originals.size());
+            Commit parent = otherHead;
+            for (int i = 0; i < files.length; i++) {
+                Commit c = new Commit(originals.get(i));
+                c.commitID = commitTree.lastcommitID + 1 + i;
+                c.setParent(parent);
+                c.fileHistory = files[i];
+                replayed.add(c);
+                parent = c;
+            }
+            commitTree.addCommits(replayed);
+            commitTree.setBranchHead(commitTree.getCurrentBranch(), parent.commitID);
+            materialize(Manifest.changes(oldHead.getFileHistory(), parent.getFileHistory()));
         }
     }
 
@@ -523,10 +1221,11 @@ public class AnkGit {
         Commit last = commitTree.getBranchHead(branchName);
         ArrayList<Commit> replayed = new ArrayList<Commit>();
         
-        while (current != null && !current.commitID.equals(last.commitID)) {
-            replayed.add(0, current);
-            current = current.parent;
+        while (current != null && current.commitID != last.commitID) {
+            replayed.add(current);
+            current = current.getParent();
         }
+        Collections.reverse(replayed);
         boolean end = false;
         int count = 0;
         while (!end) {
@@ -540,10 +1239,11 @@ public class AnkGit {
                 if (count == 0 || count == replayed.size() - 1) {
                     continue;
                 } else {
-                    replayed.get(count + 1).parent = replayed.get(count - 1);
+                    commitTree.setParent(replayed.get(count + 1), replayed.get(count - 1));
                 }
             } else if (response.equals("m")) {
-                c.commitMessage = interActiveIO(in, "Please enter a new message for this commit.");
+                commitTree.setCommitMessage(c, 
+                        interActiveIO(in, "Please enter a new message for this commit."));
             }
             count += 1;
             if (count >= replayed.size()) {
@@ -552,6 +1252,265 @@ public class AnkGit {
         }
     }
     
+    /**
+     * Packs all stored file versions into a single pack file, storing older versions 
+     * of each file as deltas against newer ones, and prints the resulting pack ratio 
+     * and how long rebuilding the deltas takes.
+     */
+    private void repack() {
+        try {
+            System.out.println(blobs.repack(fileVersions()));
+        } catch (IOException e) {
+            System.out.println("Repack failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @return for each file name, the hashes of its versions in the commits of the 
+     * tree, oldest first.
+     */
+    private HashMap<String, List<String>> fileVersions() {
+        HashMap<String, List<String>> versions = new HashMap<String, List<String>>();
+        for (Commit c : commitTree.getAllCommits()) {
+            Commit parent = c.getParent();
+            Manifest parentFiles = parent == null ? Manifest.EMPTY : parent.getFileHistory();
+            for (Map.Entry<String, String> change 
+                    : Manifest.changes(parentFiles, c.getFileHistory()).entrySet()) {
+                if (change.getValue() == null) {
+                    continue;
+                }
+                if (!versions.containsKey(change.getKey())) {
+                    versions.put(change.getKey(), new ArrayList<String>());
+                }
+                versions.get(change.getKey()).add(change.getValue());
+            }
+        }
+        return versions;
+    }
+    
+    /**
+     * Deletes the commits no branch can reach, such as those left behind by rebase, 
+     * reset and rm-branch, together with the stored file versions only they used. 
+     * Options: "--keep days" also keeps unreachable commits made in the last that many 
+     * days (and their ancestors), and loose file versions written in that time; 
+     * "--limit seconds" stops once that much time has passed, whether marking, removing 
+     * commits, collecting the versions in use or sweeping, and the next gc continues 
+     * from a GcState where this one stopped. Packs holding versions that are no longer 
+     * used are rewritten without them once every loose version is swept.
+     * @param options
+     */
+    private void gc(List<String> options) {
+        long keepDays = 0;
+        long limitSeconds = 0;
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            if ((!option.equals("--keep") && !option.equals("--limit")) || i + 1 >= options.size()) {
+                System.out.println("Usage: gc [--keep days] [--limit seconds]");
+                return;
+            }
+            try {
+                long value = Long.parseLong(options.get(++i));
+                if (option.equals("--keep")) {
+                    keepDays = value;
+                } else {
+                    limitSeconds = value;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println(option + " needs a number.");
+                return;
+            }
+        }
+        long deadline = System.nanoTime() + (limitSeconds > 0 
+                ? TimeUnit.SECONDS.toNanos(limitSeconds) : TimeUnit.DAYS.toNanos(365));
+        long keepMillis = TimeUnit.DAYS.toMillis(Math.max(0, keepDays));
+        String statePath = getAbsolutePath(GC_STATE_PATH);
+        GcState state = GcState.read(statePath);
+        if (state == null || state.keepMillis != keepMillis) {
+            state = new GcState(keepMillis, commitTree.lastcommitID);
+        }
+        /* Branches may have moved since a stopped gc; marking stops at marked commits. */
+        for (String branch : commitTree.getAllBranches()) {
+            long head = commitTree.getBranchHead(branch).commitID;
+            if (!state.reachable.get((int) head)) {
+                state.pending.push(head);
+            }
+        }
+        int commits = 0;
+        SimpleDateFormat dates = new SimpleDateFormat(COMMIT_DATE);
+        long cutoff = System.currentTimeMillis() - keepMillis;
+        try {
+            if (!markPending(state, deadline)) {
+                stopGc(state, statePath, commits, null);
+                return;
+            }
+            if (state.phase <= GcState.KEEP) {
+                for (state.phase = GcState.KEEP; keepMillis > 0 
+                        && state.cursor <= state.markedUpTo; ) {
+                    if (state.pastDeadline(deadline)) {
+                        stopGc(state, statePath, commits, null);
+                        return;
+                    }
+                    Commit c = commitTree.getCommitWithID(state.cursor);
+                    state.cursor += 1;
+                    if (c != null && !state.reachable.get((int) c.commitID) 
+                            && commitTime(dates, c) >= cutoff) {
+                        state.pending.push(c.commitID);
+                        if (!markPending(state, deadline)) {
+                            stopGc(state, statePath, commits, null);
+                            return;
+                        }
+                    }
+                }
+                state.phase = GcState.REMOVE;
+                state.cursor = 0;
+            }
+            if (state.phase == GcState.REMOVE) {
+                for (; state.cursor <= state.markedUpTo; state.cursor++) {
+                    if (state.pastDeadline(deadline)) {
+                        stopGc(state, statePath, commits, null);
+                        return;
+                    }
+                    Commit c = commitTree.getCommitWithID(state.cursor);
+                    if (c != null && !state.reachable.get((int) c.commitID)) {
+                        commitTree.removeCommit(c);
+                        commits += 1;
+                    }
+                }
+                state.phase = GcState.USED;
+                state.cursor = 0;
+            }
+            /* Also catches up on commits made since the last gc stopped in the sweep. */
+            for (; state.cursor <= commitTree.lastcommitID; state.cursor++) {
+                if (state.pastDeadline(deadline)) {
+                    stopGc(state, statePath, commits, null);
+                    return;
+                }
+                Commit c = commitTree.getCommitWithID(state.cursor);
+                if (c == null) {
+                    continue;
+                }
+                Commit parent = c.getParent();
+                Manifest parentFiles = parent == null ? Manifest.EMPTY : parent.getFileHistory();
+                for (String hash : Manifest.changes(parentFiles, c.getFileHistory()).values()) {
+                    if (hash != null) {
+                        state.use(hash);
+                    }
+                }
+            }
+            state.phase = GcState.SWEEP;
+            BlobStore.Sweep sweep = blobs.sweep(state.used, state.folder, deadline, keepMillis);
+            if (sweep.next != null) {
+                state.folder = sweep.next;
+                stopGc(state, statePath, commits, sweep);
+                return;
+            }
+            Files.deleteIfExists(Paths.get(statePath));
+            printGcResult(commits, sweep);
+            if (System.nanoTime() - deadline < 0 && blobs.packsHoldOtherThan(state.used)) {
+                System.out.println(blobs.repack(fileVersions(), state.used));
+            }
+        } catch (IOException e) {
+            System.out.println("Garbage collection failed: " + e.getMessage());
+        }
+    }
+    
+    /** Saves the progress of a gc cut short by its time limit and says so. */
+    private static void stopGc(GcState state, String statePath, int commits, 
+            BlobStore.Sweep sweep) throws IOException {
+        state.write(statePath);
+        printGcResult(commits, sweep);
+        System.out.println("Stopped at the time limit; run gc again to continue.");
+    }
+    
+    private static void printGcResult(int commits, BlobStore.Sweep sweep) {
+        System.out.println("Removed " + commits + " unreachable commits and " 
+                + (sweep == null ? 0 : sweep.removed) + " file versions (" 
+                + (sweep == null ? 0 : sweep.bytes) + " bytes).");
+    }
+    
+    /** @return when c was made, or 0 if its date cannot be read. */
+    private static long commitTime(SimpleDateFormat dates, Commit c) {
+        try {
+            return dates.parse(c.dateCommitted).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Marks the pending commits and their ancestors, stopping at commits already 
+     * marked, until none are left or the deadline passes.
+     * @return true if every pending commit was marked.
+     */
+    private boolean markPending(GcState state, long deadline) {
+        while (!state.pending.isEmpty()) {
+            Commit c = commitTree.getCommitWithID(state.pending.pop());
+            for (; c != null && !state.reachable.get((int) c.commitID); c = c.getParent()) {
+                if (state.pastDeadline(deadline)) {
+                    state.pending.push(c.commitID);
+                    return false;
+                }
+                state.reachable.set((int) c.commitID);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Prints how much space the stored file versions take, loose and packed, against
+     * their full length.
+     */
+    private void stats() {
+        try {
+            System.out.println(blobs.stats());
+        } catch (IOException e) {
+            System.out.println("Could not read the object store: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Moves repositories written before the blob store existed over to it. Every file 
+     * version under ".ankgit/commitHistory/COMMITID/" is stored as a blob and commits 
+     * refer to it by hash from then on; the old folder is removed once all versions 
+     * have been carried over.
+     */
+    private void migrateCommitHistory() {
+        File history = new File(getAbsolutePath(COMMIT_HISTORY));
+        if (commitTree == null || !history.exists()) {
+            return;
+        }
+        boolean complete = true;
+        for (Commit c : commitTree.getAllCommits()) {
+            for (Map.Entry<String, String> entry : c.getFileHistory().entrySet()) {
+                if (BlobStore.isHash(entry.getValue())) {
+                    continue;
+                }
+                Path old = Paths.get(getAbsolutePath(COMMIT_HISTORY + entry.getValue() 
+                        + "/" + entry.getKey()));
+                try {
+                    c.fileHistory = c.getFileHistory().with(entry.getKey(), blobs.store(old));
+                } catch (IOException e) {
+                    System.out.println("Could not migrate " + old.toString());
+                    complete = false;
+                }
+            }
+        }
+        if (complete) {
+            deleteRecursively(history);
+        }
+        snapshotNeeded = true;
+    }
+    
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+    
     /**USER IO */
     
     /**
@@ -580,84 +1539,203 @@ public class AnkGit {
         return false;
     }
     
-    public static void main(String[] args) {
-        AnkGit git = new AnkGit();
+    /**
+     * Reads a commit ID typed on the command line. 
+     * @param s
+     * @return the ID, or -1 (which no commit has) if s is not a number.
+     */
+    private static long parseCommitID(String s) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Loads the repository in the current directory, if there is one.
+     * @throws IOException if the repository cannot be read.
+     */
+    void load() throws IOException {
         if (new File(getAbsolutePath(".ankgit/")).exists()) {
-            git.commitTree = (CommitTree) AnkGit.readObject(COMMIT_TREE_PATH);
+            Trace.Phase phase = Trace.phase("load");
+            try (phase) {
+                loadCommitTree();
+                migrateCommitHistory();
+            }
+        }
+    }
+    
+    /**
+     * Runs one command. Commands that may overwrite the working directory ask for 
+     * confirmation first unless the caller already did.
+     * @param args command line arguments.
+     * @param in source of answers to prompts.
+     * @param confirmed true if the user already agreed to a dangerous command.
+     */
+    void execute(String[] args, Scanner in, boolean confirmed) {
+        if (args.length < 1) {
+            System.out.println("Please enter a command.");
+            return;
+        }
+        if (!confirmed && isDangerous(args[0]) && !dangerousPromptResponse(in)) {
+            return;
+        }
+        Trace.Phase phase = Trace.phase("run");
+        try (phase) {
+            switch (args[0]) {
+                case "init": 
+                    initializeDirectory();
+                    break;
+                case "add":
+                    addFiles(operands(args));
+                    break;
+                case "commit":
+                    makeCommit(args[1]);
+                    break;
+                case "rm":
+                    remove(operands(args));
+                    break;
+                case "log":
+                    log(Arrays.asList(args).subList(1, args.length));
+                    break;
+                case "global-log": 
+                    globalLog(Arrays.asList(args).subList(1, args.length));
+                    break;
+                case "status" : 
+                    System.out.println(status());
+                    break;
+                case "branch": 
+                    branch(args[1]);
+                    break;
+                case "rm-branch": 
+                    rmBranch(args[1]);
+                    break;
+                case "find": 
+                    if (args[1].startsWith("--")) {
+                        find(operands(args));
+                    } else {
+                        find(args[1]);
+                    }
+                    break;
+                case "checkout":
+                    if (args.length > 2) {
+                        checkout(parseCommitID(args[1]), args[2]);
+                    } else {
+                        checkout(args[1]);
+                    }
+                    break;
+                case "merge":
+                    merge(args[1]);
+                    break;
+                case "reset":
+                    reset(parseCommitID(args[1]));
+                    break;
+                case "rebase":
+                    reBase(args[1]);
+                    break;
+                case "i-rebase":
+                    iReBase(args[1], in);
+                    break;
+                case "repack":
+                    repack();
+                    break;
+                case "diff":
+                    diff(Arrays.asList(args).subList(1, args.length));
+                    break;
+                case "gc":
+                    gc(Arrays.asList(args).subList(1, args.length));
+                    break;
+                case "stats":
+                    stats();
+                    break;
+                default:
+                    System.out.println("Please enter a valid command.");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Please enter a valid command.");
+        }
+    }
+    
+    /** Returns the arguments after the command name, of which there must be at least one. */
+    private static List<String> operands(String[] args) {
+        if (args.length < 2) {
+            throw new ArrayIndexOutOfBoundsException("Missing operand");
+        }
+        return Arrays.asList(args).subList(1, args.length);
+    }
+    
+    /**
+     * Persists everything the commands run so far have changed.
+     */
+    void save() {
+        Trace.Phase phase = Trace.phase("save");
+        try (phase) {
+            saveStaging();
+            saveCommitTree();
+            saveIndex();
+        }
+    }
+    
+    /** @return the loaded commit tree, for tools that run alongside the commands. */
+    CommitTree getCommitTree() {
+        return commitTree;
+    }
+    
+    /**
+     * @param command
+     * @return true if the command may overwrite files in the working directory.
+     */
+    static boolean isDangerous(String command) {
+        switch (command) {
+            case "checkout":
+            case "merge":
+            case "reset":
+            case "rebase":
+            case "i-rebase":
+                return true;
+            default:
+                return false;
         }
+    }
+    
+    public static void main(String[] args) {
         Scanner in = new Scanner(System.in);
-        if (args.length >= 1) {
+        Trace.configure(null);
+        if (args.length >= 1 && (args[0].equals("--trace") || args[0].startsWith("--trace="))) {
+            Trace.configure(args[0].equals("--trace") ? "text" : args[0].substring(8));
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length >= 1 && args[0].equals("daemon")) {
+            Daemon.main(args);
+            return;
+        }
+        boolean confirmed = false;
+        if (args.length >= 1 && isDangerous(args[0])) {
+            if (!dangerousPromptResponse(in)) {
+                return;
+            }
+            confirmed = true;
+        }
+        /* Interactive rebase needs this terminal for its prompts, and a traced command 
+         * must run in the process that reports on it, so those always run here. */
+        if (args.length >= 1 && !args[0].equals("i-rebase") && !Trace.isReporting() 
+                && Daemon.forward(args)) {
+            return;
+        }
+        Trace.Phase phase = Trace.phase(args.length >= 1 ? args[0] : "none");
+        try (phase) {
+            AnkGit git = new AnkGit();
             try {
-                switch (args[0]) {
-                    case "init": 
-                        git.initializeDirectory();
-                        break;
-                    case "add":
-                        git.addFile(args[1]);
-                        break;
-                    case "commit":
-                        git.makeCommit(args[1]);
-                        break;
-                    case "rm":
-                        git.remove(args[1]);
-                        break;
-                    case "log":
-                        System.out.println(git.log());
-                        break;
-                    case "global-log": 
-                        System.out.println(git.globalLog());
-                        break;
-                    case "status" : 
-                        System.out.println(git.status());
-                        break;
-                    case "branch": 
-                        git.branch(args[1]);
-                        break;
-                    case "rm-branch": 
-                        git.rmBranch(args[1]);
-                        break;
-                    case "find": 
-                        git.find(args[1]);
-                        break;
-                    case "checkout":
-                        if (dangerousPromptResponse(in)) {
-                            if (args.length > 2) {
-                                git.checkout(args[1], args[2]);
-                            } else {
-                                git.checkout(args[1]);
-                            }
-                        }
-                        break;
-                    case "merge":
-                        if (dangerousPromptResponse(in)) {
-                            git.merge(args[1]);
-                        }
-                        break;
-                    case "reset":
-                        if (dangerousPromptResponse(in)) {
-                            git.reset(args[1]);
-                        }
-                        break;
-                    case "rebase":
-                        if (dangerousPromptResponse(in)) {
-                            git.reBase(args[1]);
-                        }
-                        break;
-                    case "i-rebase":
-                        if (dangerousPromptResponse(in)) {
-                            git.iReBase(args[1], in);
-                        }
-                        break;
-                    default:
-                        System.out.println("Please enter a valid command.");
-                }
-            } catch (IOException | ArrayIndexOutOfBoundsException e) {
-                System.out.println("Please enter a valid command.");
+                git.load();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
             }
-        } else {
-            System.out.println("Please enter a command.");
+            git.execute(args, in, confirmed);
+            in.close();
+            git.save();
         }
-        in.close();
-        writeObject(COMMIT_TREE_PATH, git.commitTree);
+        Trace.report(System.err);
     }
 }
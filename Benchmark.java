@@ -0,0 +1,368 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the core repository operations on synthetic repositories.
+ *
+ * Usage: java Benchmark [-commits n] [-divergence n] [-files n] [-size bytes]
+ *                       [-warmup n] [-warmupms ms] [-iterations n] [operation ...]
+ *
+ * Every operation runs in a fresh JVM, forked with a new temporary directory as its
+ * working directory. The fork generates a repository there: -files text files whose
+ * sizes follow an exponential distribution with mean -size, a master history of
+ * -commits commits that each edit about one file in a hundred, and a branch "other"
+ * split off from its head, after which master and other each get -divergence more
+ * commits. Both branches edit lines in the same files, so merges include line merges.
+ * The operation is then run untimed at least -warmup times and for at least -warmupms
+ * milliseconds, so that operations taking microseconds are compiled before they are
+ * timed, and -iterations times timed. Whatever an operation computes is passed to
+ * consume, so the JIT cannot drop the work as unused. One line of results is printed:
+ * throughput, median, 90th percentile and worst latency in microseconds, and bytes
+ * allocated per operation and per second. Allocation is counted on
+ * the thread running the operation only, so work handed to worker threads is left
+ * out; set -Dankgit.threads=1 to keep file writes on that thread.
+ *
+ * Operations: commit, split-point, checkout, merge, rebase, load, save (all by default).
+ * The same seed is used every run, so results on one machine can be diffed against
+ * benchmark-baseline.txt between releases.
+ */
+public class Benchmark {
+
+    private static final String[] OPERATIONS =
+        {"commit", "split-point", "checkout", "merge", "rebase", "load", "save"};
+    /* Marks the result line among anything else a fork prints. */
+    private static final String RESULT = "RESULT\t";
+    private static final long SEED = 20141107L;
+
+    private final Map<String, Integer> settings = new LinkedHashMap<String, Integer>();
+    private final Random random = new Random(SEED);
+    private AnkGit git;
+    private PrintStream out;
+    /* Results are compared with this, which they never are, so they count as used. */
+    private volatile Object blackhole = new Object();
+
+    private Benchmark() {
+        settings.put("commits", 500);
+        settings.put("divergence", 50);
+        settings.put("files", 1000);
+        settings.put("size", 4096);
+        settings.put("warmup", 3);
+        settings.put("warmupms", 1000);
+        settings.put("iterations", 10);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Benchmark bench = new Benchmark();
+        List<String> operations = new ArrayList<String>();
+        String fork = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fork") && i + 1 < args.length) {
+                fork = args[++i];
+            } else if (args[i].startsWith("-") && i + 1 < args.length
+                    && bench.settings.containsKey(args[i].substring(1))) {
+                try {
+                    bench.settings.put(args[i].substring(1), Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid number: " + args[i]);
+                    return;
+                }
+            } else if (Arrays.asList(OPERATIONS).contains(args[i])) {
+                operations.add(args[i]);
+            } else {
+                System.out.println("Unknown operation or option: " + args[i]);
+                return;
+            }
+        }
+        if (fork != null) {
+            bench.runFork(fork);
+            return;
+        }
+        if (operations.isEmpty()) {
+            operations.addAll(Arrays.asList(OPERATIONS));
+        }
+        System.out.println("# " + bench.settings + ", java " + System.getProperty("java.version")
+                + ", " + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %12s %12s", "operation",
+                "ops/s", "p50 us", "p90 us", "max us", "alloc/op", "alloc MB/s"));
+        for (String operation : operations) {
+            System.out.println(bench.fork(operation));
+        }
+    }
+
+    /**
+     * Runs one operation in a new JVM inside a new temporary directory, which is
+     * deleted afterwards.
+     * @return the result line, or a line describing the failure.
+     */
+    private String fork(String operation) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("ankgit-bench");
+        try {
+            List<String> command = new ArrayList<String>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            StringBuilder classPath = new StringBuilder();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                if (classPath.length() > 0) {
+                    classPath.append(File.pathSeparator);
+                }
+                classPath.append(Paths.get(entry).toAbsolutePath());
+            }
+            command.add("-cp");
+            command.add(classPath.toString());
+            command.add("Benchmark");
+            for (Map.Entry<String, Integer> setting : settings.entrySet()) {
+                command.add("-" + setting.getKey());
+                command.add(setting.getValue().toString());
+            }
+            command.add("--fork");
+            command.add(operation);
+            Process process = new ProcessBuilder(command).directory(dir.toFile())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            String result = null;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT)) {
+                        result = line.substring(RESULT.length());
+                    }
+                }
+            }
+            int status = process.waitFor();
+            if (result == null) {
+                return String.format("%-12s failed (exit status %d)", operation, status);
+            }
+            return result;
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    /** Generates the repository in the working directory and measures the operation. */
+    private void runFork(String operation) throws IOException {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        git = new AnkGit();
+        git.load();
+        run("init");
+        git.save();
+        git = new AnkGit();
+        git.load();
+        generate();
+        Operation op = operation(operation);
+        long warmupEnd = System.nanoTime() + settings.get("warmupms") * 1000000L;
+        for (int i = 0; i < settings.get("warmup") || System.nanoTime() - warmupEnd < 0; i++) {
+            op.setUp();
+            consume(op.run());
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = Math.max(1, settings.get("iterations"));
+        long[] times = new long[iterations];
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            op.setUp();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            Object result = op.run();
+            times[i] = System.nanoTime() - start;
+            consume(result);
+            allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+        }
+        long total = 0;
+        for (long t : times) {
+            total += t;
+        }
+        Arrays.sort(times);
+        double seconds = total / 1e9;
+        out.println(RESULT + String.format("%-12s %10.1f %10.1f %10.1f %10.1f %12s %12.1f",
+                operation, iterations / seconds,
+                times[(iterations - 1) / 2] / 1e3, times[(iterations * 9 - 1) / 10] / 1e3,
+                times[iterations - 1] / 1e3,
+                formatBytes(allocated / iterations), allocated / seconds / (1 << 20)));
+        out.flush();
+    }
+
+    /** 
+     * One benchmarked operation; setUp is run before each call but not timed, and run 
+     * returns whatever it computed, or null if its work is writing files.
+     */
+    private interface Operation {
+        void setUp() throws IOException;
+        Object run() throws IOException;
+    }
+
+    /** Uses a result as far as the JIT can tell, the way JMH's Blackhole does. */
+    private void consume(Object result) {
+        if (result == blackhole) {
+            throw new IllegalStateException("Result is the blackhole");
+        }
+    }
+
+    private Operation operation(String name) throws IOException {
+        final CommitTree tree = git.getCommitTree();
+        final long masterHead = tree.getHeadCommit().commitID;
+        final String snapshot = Paths.get(".ankgit", "bench-snapshot").toAbsolutePath().toString();
+        switch (name) {
+            case "commit":
+                return new Operation() {
+                    public void setUp() throws IOException {
+                        stage(editFile(random.nextInt(settings.get("files"))));
+                    }
+                    public Object run() {
+                        Benchmark.this.run("commit", "benchmark commit");
+                        return null;
+                    }
+                };
+            case "split-point":
+                return new Operation() {
+                    public void setUp() { }
+                    public Object run() {
+                        return tree.findSplitPoint("master", "other");
+                    }
+                };
+            case "checkout":
+                return new Operation() {
+                    public void setUp() { }
+                    public Object run() {
+                        Benchmark.this.run("checkout",
+                                tree.getCurrentBranch().equals("master") ? "other" : "master");
+                        return null;
+                    }
+                };
+            case "merge":
+                return new Operation() {
+                    public void setUp() { }
+                    public Object run() {
+                        Benchmark.this.run("merge", "other");
+                        return null;
+                    }
+                };
+            case "rebase":
+                return new Operation() {
+                    public void setUp() {
+                        Benchmark.this.run("reset", Long.toString(masterHead));
+                    }
+                    public Object run() {
+                        Benchmark.this.run("rebase", "other");
+                        return null;
+                    }
+                };
+            case "load":
+                SnapshotFile.write(tree, snapshot);
+                return new Operation() {
+                    public void setUp() { }
+                    public Object run() throws IOException {
+                        return SnapshotFile.read(snapshot);
+                    }
+                };
+            default:
+                return new Operation() {
+                    public void setUp() { }
+                    public Object run() throws IOException {
+                        SnapshotFile.write(tree, snapshot);
+                        return null;
+                    }
+                };
+        }
+    }
+
+    /** Builds the history described in the class comment. */
+    private void generate() throws IOException {
+        int files = Math.max(1, settings.get("files"));
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < files; i++) {
+            Path file = file(i);
+            Files.createDirectories(file.getParent());
+            StringBuilder content = new StringBuilder();
+            long size = (long) (-Math.log(1 - random.nextDouble()) * settings.get("size"));
+            for (int line = 0; content.length() < size; line++) {
+                content.append("line ").append(line).append(" of file ").append(i)
+                        .append(" in the benchmark repository\n");
+            }
+            Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+            names.add(file.toString());
+        }
+        stage(names.toArray(new String[0]));
+        run("commit", "generated files");
+        int perCommit = Math.max(1, files / 100);
+        commit(settings.get("commits") - 1, perCommit);
+        run("branch", "other");
+        run("checkout", "other");
+        commit(settings.get("divergence"), perCommit);
+        run("checkout", "master");
+        commit(settings.get("divergence"), perCommit);
+        git.save();
+    }
+
+    /** Makes count commits on the current branch, each editing edits random files. */
+    private void commit(int count, int edits) throws IOException {
+        for (int c = 0; c < count; c++) {
+            String[] names = new String[edits];
+            for (int e = 0; e < edits; e++) {
+                names[e] = editFile(random.nextInt(settings.get("files")));
+            }
+            stage(names);
+            run("commit", "commit " + c + " on " + git.getCommitTree().getCurrentBranch());
+        }
+    }
+
+    /** Replaces one random line of the file with a new one. */
+    private String editFile(int i) throws IOException {
+        Path file = file(i);
+        List<String> lines = new ArrayList<String>(Files.readAllLines(file, StandardCharsets.UTF_8));
+        String edit = "edited " + random.nextLong();
+        if (lines.isEmpty()) {
+            lines.add(edit);
+        } else {
+            lines.set(random.nextInt(lines.size()), edit);
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file.toString();
+    }
+
+    private static Path file(int i) {
+        return Paths.get("dir" + (i % 32), "file" + i + ".txt");
+    }
+
+    private void stage(String... names) {
+        String[] args = new String[names.length + 1];
+        args[0] = "add";
+        System.arraycopy(names, 0, args, 1, names.length);
+        run(args);
+    }
+
+    private void run(String... args) {
+        git.execute(args, new Scanner(""), true);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1 << 10) {
+            return bytes + " B";
+        } else if (bytes < 1 << 20) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+}
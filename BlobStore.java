@@ -0,0 +1,865 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content-addressed store for file versions. Every version is saved once under
+ * ".ankgit/objects/XX/YYYY..." where XXYYYY... is the SHA-256 hash of its bytes,
+ * so identical content committed on any number of branches shares a single copy.
+ * repack() moves these loose blobs into a PackFile under ".ankgit/objects/pack/",
+ * storing versions of the same file as deltas against each other; every read
+ * method looks in the packs when a blob is not loose.
+ *
+ * A loose blob is kept Deflate compressed, as "YYYY....z" holding the content length
+ * followed by the compressed bytes, unless compressing it does not save at least a
+ * sixteenth of its size; then it is kept as is, as blobs were before compression.
+ * Readers inflate while streaming, so content is never held in memory whole. The
+ * level comes from the ankgit.compression system property or ANKGIT_COMPRESSION
+ * environment variable (0 to 9, where 0 stores everything as is; 6 by default).
+ *
+ * copyTo writes a blob kept as is with FileChannel.transferTo, so its bytes never pass
+ * through the JVM, or, if the ankgit.materialize property or ANKGIT_MATERIALIZE
+ * variable says so, by linking it: "hardlink" makes the working file another name for
+ * the blob itself, and "reflink" makes a copy-on-write clone of it where the file
+ * system can (falling back to transferTo where it cannot). A hard linked blob is made
+ * read-only (or copied if it cannot be), and an existing working file is always deleted
+ * rather than overwritten, so writing out a new version never changes a stored one.
+ * Editing a hard linked file in place still changes the blob, since permissions do not
+ * stop every editor or root, so a loose blob with more than one name is hashed again
+ * before it is read, whatever the current mode, and dropped if it no longer matches.
+ * Compressed and packed blobs are always copied.
+ */
+public class BlobStore {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /* Files are hashed through a buffer of this size, whatever their length. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /* Versions larger than this are always packed whole. */
+    private static final long MAX_DELTA_SOURCE = 16L << 20;
+    /* Longest chain of deltas a packed object may need to be rebuilt. */
+    private static final int MAX_DELTA_DEPTH = 10;
+    private static final String COMPRESSED_SUFFIX = ".z";
+    private static final int DEFAULT_LEVEL = 6;
+    /* Input after which a file that is not compressing well is stored as is instead. */
+    private static final long COMPRESSION_SAMPLE = 4L << 20;
+    /* Ways copyTo can write out a blob kept as is; see the class comment. */
+    public static final String COPY = "copy";
+    public static final String HARDLINK = "hardlink";
+    public static final String REFLINK = "reflink";
+    /* Set once cloning has failed, so later files go straight to transferTo. */
+    private static volatile boolean reflinkFailed;
+    private final String objectDir;
+    private final int level;
+    private final String mode;
+    private ArrayList<PackFile> packs;
+    /* Linked loose blobs found intact, with the modification time they were hashed at. */
+    private final ConcurrentHashMap<String, FileTime> verified = 
+            new ConcurrentHashMap<String, FileTime>();
+
+    /**
+     * @param objectDir absolute path of the objects directory, ending in "/".
+     */
+    public BlobStore(String objectDir) {
+        this(objectDir, compressionLevel());
+    }
+
+    /**
+     * @param objectDir absolute path of the objects directory, ending in "/".
+     * @param level Deflate level for new blobs, 0 to store them uncompressed.
+     */
+    public BlobStore(String objectDir, int level) {
+        this.objectDir = objectDir;
+        this.level = level;
+        this.mode = materializeMode();
+    }
+
+    /** @return the configured way of writing blobs out: COPY, HARDLINK or REFLINK. */
+    public static String materializeMode() {
+        String setting = System.getProperty("ankgit.materialize");
+        if (setting == null) {
+            setting = System.getenv("ANKGIT_MATERIALIZE");
+        }
+        if (setting != null) {
+            setting = setting.trim().toLowerCase(Locale.ROOT);
+            if (setting.equals(COPY) || setting.equals(HARDLINK) || setting.equals(REFLINK)) {
+                return setting;
+            }
+            System.out.println("Ignoring invalid materialize mode: " + setting);
+        }
+        return COPY;
+    }
+
+    /** @return the configured compression level. */
+    public static int compressionLevel() {
+        String setting = System.getProperty("ankgit.compression");
+        if (setting == null) {
+            setting = System.getenv("ANKGIT_COMPRESSION");
+        }
+        if (setting != null) {
+            try {
+                int level = Integer.parseInt(setting.trim());
+                if (level >= 0 && level <= 9) {
+                    return level;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            System.out.println("Ignoring invalid compression level: " + setting);
+        }
+        return DEFAULT_LEVEL;
+    }
+
+    /**
+     * Hashes the contents of a file, streaming it through a fixed size buffer 
+     * so memory use does not depend on the file's size.
+     * @param file
+     * @return hex encoded SHA-256 of the file's bytes.
+     * @throws IOException
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                length += n;
+            }
+        }
+        Trace.read(length);
+        Trace.touched(1);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param content
+     * @return hex encoded SHA-256 of content, the hash it would be stored under.
+     */
+    public static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    /**
+     * Checks whether a string looks like a blob hash rather than an old style commit ID.
+     * @param s
+     * @return true if s is a hex encoded SHA-256.
+     */
+    public static boolean isHash(String s) {
+        if (s == null || s.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves a copy of the given file in the store unless a blob with the same content
+     * already exists. The copy is written to a temporary file first and then moved into
+     * place, so a half written blob is never visible under its hash.
+     * @param file
+     * @return hash of the stored content.
+     * @throws IOException
+     */
+    public String store(Path file) throws IOException {
+        return store(file, hash(file));
+    }
+
+    /**
+     * Same as store(file), for callers that already know the file's hash.
+     * @param file
+     * @param hash hash of the file's current contents.
+     * @return hash
+     * @throws IOException
+     */
+    public String store(Path file, String hash) throws IOException {
+        Path blob = getPath(hash);
+        if (!contains(hash)) {
+            new File(blob.getParent().toString()).mkdirs();
+            Path tmp = Files.createTempFile(blob.getParent(), "tmp", null);
+            try {
+                if (level > 0 && compress(file, tmp)) {
+                    Files.move(tmp, getCompressedPath(hash), StandardCopyOption.ATOMIC_MOVE);
+                    Trace.wroteFile(getCompressedPath(hash).toString());
+                } else {
+                    transfer(file, tmp);
+                    Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    Trace.wroteFile(blob.toString());
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the compressed form of file to target, giving up as soon as it is clear
+     * compression will not save a sixteenth of the file.
+     * @return true if target now holds the compressed blob.
+     */
+    private boolean compress(Path file, Path target) throws IOException {
+        long length = Files.size(file);
+        Deflater deflater = new Deflater(level);
+        try (InputStream in = Files.newInputStream(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(target), BUFFER_SIZE))) {
+            out.writeLong(length);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            boolean sampled = false;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                deflated.write(buffer, 0, n);
+                if (!sampled && deflater.getBytesRead() >= COMPRESSION_SAMPLE) {
+                    sampled = true;
+                    if (!isWorthIt(deflater.getBytesRead(), deflater.getBytesWritten())) {
+                        return false;
+                    }
+                }
+            }
+            deflated.finish();
+            out.flush();
+            return isWorthIt(length, 8 + deflater.getBytesWritten());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean isWorthIt(long length, long compressed) {
+        return compressed <= length - length / 16;
+    }
+
+    /**
+     * @param hash
+     * @return true if a blob with this hash has been stored.
+     */
+    public boolean contains(String hash) {
+        if (intactLoose(hash) != null || Files.exists(getCompressedPath(hash))) {
+            return true;
+        }
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param hash
+     * @return length in bytes of the content stored under hash.
+     * @throws IOException
+     */
+    public long size(String hash) throws IOException {
+        Path loose = intactLoose(hash);
+        if (loose != null) {
+            return Files.size(loose);
+        }
+        Path compressed = getCompressedPath(hash);
+        if (Files.exists(compressed)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(compressed))) {
+                return in.readLong();
+            }
+        }
+        for (PackFile pack : getPacks()) {
+            long length = pack.contentLength(hash);
+            if (length >= 0) {
+                return length;
+            }
+        }
+        throw new IOException("No blob " + hash);
+    }
+
+    /**
+     * Opens the content stored under hash, wherever it is kept.
+     * @param hash
+     * @return a stream the caller must close.
+     * @throws IOException
+     */
+    public InputStream open(String hash) throws IOException {
+        Path loose = intactLoose(hash);
+        if (loose != null) {
+            return Files.newInputStream(loose);
+        }
+        Path compressed = getCompressedPath(hash);
+        if (Files.exists(compressed)) {
+            InputStream in = new BufferedInputStream(Files.newInputStream(compressed), BUFFER_SIZE);
+            if (in.skip(8) != 8) {
+                in.close();
+                throw new IOException("Truncated blob " + hash);
+            }
+            return inflating(in);
+        }
+        for (PackFile pack : getPacks()) {
+            InputStream in = pack.open(hash);
+            if (in != null) {
+                return in;
+            }
+        }
+        throw new IOException("No blob " + hash);
+    }
+
+    /**
+     * Finds the uncompressed blob stored under hash. One with other names, which copyTo
+     * made while materializing by hard link, may have been edited in place through one 
+     * of them; it is hashed again (once per modification time) and deleted if it no 
+     * longer matches, so the version is read from a pack instead or reported missing.
+     * @param hash
+     * @return the blob's path, or null if there is no intact loose blob.
+     */
+    private Path intactLoose(String hash) {
+        Path loose = getPath(hash);
+        try {
+            if (!Files.exists(loose) || linkCount(loose) <= 1) {
+                return Files.exists(loose) ? loose : null;
+            }
+            FileTime modified = Files.getLastModifiedTime(loose);
+            if (modified.equals(verified.get(hash))) {
+                return loose;
+            }
+            if (hash(loose).equals(hash)) {
+                verified.put(hash, modified);
+                return loose;
+            }
+            verified.remove(hash);
+            System.out.println("Stored version " + hash + " was edited through a hard link"
+                    + " and is no longer used.");
+            Files.deleteIfExists(loose);
+        } catch (IOException e) {
+            // unreadable; treat it as missing
+        }
+        return null;
+    }
+
+    /** @return number of names the file has, or 1 where the file system cannot tell. */
+    private static int linkCount(Path file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @param hash
+     * @return location of the blob with the given hash inside the store, when it is
+     * stored uncompressed.
+     */
+    public Path getPath(String hash) {
+        return Paths.get(objectDir + hash.substring(0, 2) + "/" + hash.substring(2));
+    }
+
+    /**
+     * @param hash
+     * @return location of the blob with the given hash, when it is stored compressed.
+     */
+    public Path getCompressedPath(String hash) {
+        return Paths.get(objectDir + hash.substring(0, 2) + "/" + hash.substring(2)
+                + COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Wraps a Deflate stream in one that inflates it, releasing the inflater on close.
+     * @param in
+     * @return the inflated stream.
+     */
+    static InputStream inflating(InputStream in) {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the blob with the given hash to target, replacing whatever is there.
+     * Missing parent folders of the target are created.
+     * @param hash
+     * @param target
+     * @throws IOException
+     */
+    public void copyTo(String hash, Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path loose = intactLoose(hash);
+        if (loose == null) {
+            try (InputStream in = open(hash)) {
+                /* Never write into the old file: it may be a hard link to a stored blob. */
+                Files.deleteIfExists(target);
+                Trace.touched(1);
+                Trace.wrote(Files.copy(in, target));
+            }
+            return;
+        }
+        Files.deleteIfExists(target);
+        Trace.touched(1);
+        if (mode.equals(HARDLINK) && loose.toFile().setWritable(false, false)) {
+            try {
+                Files.createLink(target, loose);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // another file system, or no hard links; copy instead
+            }
+        } else if (mode.equals(REFLINK) && !reflinkFailed && reflink(loose, target)) {
+            return;
+        }
+        Trace.wrote(transfer(loose, target));
+    }
+
+    /**
+     * Checks for a working file that is a hard link to a stored blob but no longer
+     * holds that blob's content, which means it was edited in place and the stored
+     * version was edited with it. The damaged blob is deleted, so the version is read
+     * from a pack if one holds it, or reported as missing, instead of being served
+     * with the wrong content. Links made under an earlier mode are checked too.
+     * @param file working file.
+     * @param storedHash hash of the version the file was written out as.
+     * @param hash hash of the file's current content.
+     * @return true if the stored version was damaged.
+     * @throws IOException
+     */
+    public boolean checkLink(Path file, String storedHash, String hash) throws IOException {
+        Path loose = getPath(storedHash);
+        if (storedHash.equals(hash) || !Files.exists(loose) || !Files.isSameFile(file, loose)) {
+            return false;
+        }
+        verified.remove(storedHash);
+        Files.delete(loose);
+        return true;
+    }
+
+    /** Copies source to target, which is created or truncated, inside the kernel. */
+    private static long transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long done = 0;
+            while (done < size) {
+                done += in.transferTo(done, size - done, out);
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Clones source to target with cp --reflink=always, which shares the data blocks
+     * on file systems that support it (Btrfs, XFS, APFS) and fails elsewhere.
+     * @return true if target is now a clone.
+     */
+    private static boolean reflink(Path source, Path target) {
+        try {
+            Process cp = new ProcessBuilder("cp", "--reflink=always",
+                    source.toString(), target.toString())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            if (cp.waitFor() == 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            // no cp; copy instead
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reflinkFailed = true;
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            // transfer truncates it anyway
+        }
+        return false;
+    }
+
+    /**
+     * Packs every blob, loose or already packed, into one new pack file and removes the
+     * loose copies and old packs. Successive versions of the same file (newest first, 
+     * as given by versions) are stored as deltas against the next newer version when 
+     * that saves at least half the space, as long as the chain stays within 
+     * MAX_DELTA_DEPTH; the newest version of every file is stored whole.
+     * @param versions for each file name, the hashes of its versions from oldest to newest.
+     * @return a report of the pack ratio and delta reconstruction time.
+     * @throws IOException
+     */
+    public String repack(Map<String, List<String>> versions) throws IOException {
+        return repack(versions, null);
+    }
+
+    /**
+     * Same as repack(versions), except that only blobs in keep are packed; packed blobs
+     * outside it are dropped with the old packs.
+     * @param versions
+     * @param keep hashes to pack, or null for all of them.
+     * @return a report of the pack ratio and delta reconstruction time.
+     * @throws IOException
+     */
+    public String repack(Map<String, List<String>> versions, Set<String> keep) 
+            throws IOException {
+        LinkedHashSet<String> all = new LinkedHashSet<String>();
+        for (String hash : looseHashes()) {
+            if (contains(hash)) {
+                all.add(hash);
+            }
+        }
+        for (PackFile pack : getPacks()) {
+            all.addAll(pack.hashes());
+        }
+        if (keep != null) {
+            all.retainAll(keep);
+        }
+        if (all.isEmpty()) {
+            return "Nothing to pack.";
+        }
+        /* Choose a delta base for each blob: hash -> {base hash, delta}. */
+        HashMap<String, Integer> depth = new HashMap<String, Integer>();
+        HashMap<String, Object[]> deltas = new HashMap<String, Object[]>();
+        for (List<String> history : versions.values()) {
+            String newer = null;
+            byte[] newerBytes = null;
+            for (int i = history.size() - 1; i >= 0; i--) {
+                String hash = history.get(i);
+                if (!all.contains(hash) || hash.equals(newer)) {
+                    continue;
+                }
+                byte[] bytes = size(hash) <= MAX_DELTA_SOURCE ? readBytes(hash) : null;
+                if (!depth.containsKey(hash)) {
+                    depth.put(hash, 0);
+                    if (newer != null && newerBytes != null && bytes != null
+                            && depth.get(newer) < MAX_DELTA_DEPTH) {
+                        byte[] delta = Delta.create(newerBytes, bytes);
+                        if (delta.length < bytes.length / 2) {
+                            deltas.put(hash, new Object[] {newer, delta});
+                            depth.put(hash, depth.get(newer) + 1);
+                        }
+                    }
+                }
+                newer = hash;
+                newerBytes = bytes;
+            }
+        }
+
+        Path packDir = Paths.get(objectDir + "pack");
+        Files.createDirectories(packDir);
+        String name = "pack-" + System.currentTimeMillis();
+        Path packPath = packDir.resolve(name + ".pack");
+        Path indexPath = packDir.resolve(name + ".idx");
+        long contentBytes;
+        long packBytes;
+        try (PackFile.Writer writer = new PackFile.Writer(packPath, level)) {
+            for (String hash : all) {
+                Object[] delta = deltas.get(hash);
+                if (delta != null) {
+                    writer.addDelta(hash, size(hash), (String) delta[0], (byte[]) delta[1]);
+                } else {
+                    try (InputStream in = open(hash)) {
+                        writer.addFull(hash, in, size(hash));
+                    }
+                }
+            }
+            writer.finish(indexPath);
+            contentBytes = writer.contentBytes();
+            packBytes = writer.packBytes();
+        }
+
+        ArrayList<PackFile> old = getPacks();
+        PackFile packed = new PackFile(packPath, indexPath);
+        packs = new ArrayList<PackFile>();
+        packs.add(packed);
+        for (PackFile pack : old) {
+            pack.close();
+            Files.deleteIfExists(pack.getPackPath());
+            Files.deleteIfExists(pack.getIndexPath());
+        }
+        for (String hash : looseHashes()) {
+            if (packed.contains(hash)) {
+                Files.deleteIfExists(getPath(hash));
+                Files.deleteIfExists(getCompressedPath(hash));
+                new File(getPath(hash).getParent().toString()).delete();
+            }
+        }
+
+        int maxDepth = 0;
+        for (int d : depth.values()) {
+            maxDepth = Math.max(maxDepth, d);
+        }
+        long slowest = 0;
+        long total = 0;
+        int sampled = 0;
+        for (String hash : deltas.keySet()) {
+            long start = System.nanoTime();
+            try (InputStream in = packed.open(hash)) {
+                while (in.skip(Long.MAX_VALUE) > 0) {
+                    continue;
+                }
+            }
+            long took = System.nanoTime() - start;
+            slowest = Math.max(slowest, took);
+            total += took;
+            sampled += 1;
+            if (sampled == 1000) {
+                break;
+            }
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("Packed " + all.size() + " objects (" + deltas.size() 
+                + " as deltas, max chain depth " + maxDepth + ").\n");
+        report.append(String.format("Content %d bytes, pack %d bytes, ratio %.2f.", 
+                contentBytes, packBytes, packBytes / (double) contentBytes));
+        if (sampled > 0) {
+            report.append(String.format("%nDelta reconstruction: avg %.3f ms, max %.3f ms "
+                    + "over %d objects.", total / 1e6 / sampled, slowest / 1e6, sampled));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Compares the space the store takes with the length of the content it holds.
+     * @return a report of loose and packed objects and the bytes saved overall.
+     * @throws IOException
+     */
+    public String stats() throws IOException {
+        int looseCount = 0;
+        int compressedCount = 0;
+        long looseContent = 0;
+        long looseStored = 0;
+        for (String hash : looseHashes()) {
+            looseCount += 1;
+            looseContent += size(hash);
+            if (Files.exists(getPath(hash))) {
+                looseStored += Files.size(getPath(hash));
+            } else {
+                looseStored += Files.size(getCompressedPath(hash));
+                compressedCount += 1;
+            }
+        }
+        int packedCount = 0;
+        long packedContent = 0;
+        long packedStored = 0;
+        for (PackFile pack : getPacks()) {
+            for (String hash : pack.hashes()) {
+                packedContent += pack.contentLength(hash);
+            }
+            packedCount += pack.size();
+            packedStored += Files.size(pack.getPackPath()) + Files.size(pack.getIndexPath());
+        }
+        long content = looseContent + packedContent;
+        long stored = looseStored + packedStored;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Loose: %d objects (%d compressed), %d bytes stored "
+                + "for %d bytes of content.%n", looseCount, compressedCount, looseStored, looseContent));
+        report.append(String.format("Packed: %d objects in %d packs, %d bytes stored "
+                + "for %d bytes of content.%n", packedCount, getPacks().size(), packedStored, packedContent));
+        report.append(String.format("Saved %d bytes, ratio %.2f, compression level %d.",
+                content - stored, content == 0 ? 1.0 : stored / (double) content, level));
+        return report.toString();
+    }
+
+    /** What one call of sweep did. */
+    public static class Sweep {
+        /** Number of loose blobs deleted. */
+        public int removed;
+        /** Bytes those blobs took on disk. */
+        public long bytes;
+        /** Folder to continue from, or null if every folder was swept. */
+        public String next;
+    }
+
+    /**
+     * Deletes loose blobs that are not in keep, one object folder at a time in name 
+     * order, so that a sweep cut short by the deadline can be continued later.
+     * @param keep hashes still in use.
+     * @param from name of the folder to start at, or null to start at the first.
+     * @param deadline System.nanoTime() after which no further folder is started; at 
+     * least one folder is always swept, so every call makes progress.
+     * @param minAgeMillis blobs modified more recently than this are kept.
+     * @return what was deleted and where to continue.
+     * @throws IOException
+     */
+    public Sweep sweep(Set<String> keep, String from, long deadline, long minAgeMillis) 
+            throws IOException {
+        Sweep sweep = new Sweep();
+        String[] dirs = new File(objectDir).list();
+        if (dirs == null) {
+            return sweep;
+        }
+        Arrays.sort(dirs);
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        int swept = 0;
+        for (String name : dirs) {
+            File dir = new File(objectDir + name);
+            if (name.length() != 2 || !dir.isDirectory() || (from != null && name.compareTo(from) < 0)) {
+                continue;
+            }
+            if (swept > 0 && System.nanoTime() - deadline > 0) {
+                sweep.next = name;
+                break;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath())) {
+                for (Path f : files) {
+                    String hash = name + f.getFileName().toString();
+                    if (hash.endsWith(COMPRESSED_SUFFIX)) {
+                        hash = hash.substring(0, hash.length() - COMPRESSED_SUFFIX.length());
+                    }
+                    if (!isHash(hash) || keep.contains(hash)
+                            || Files.getLastModifiedTime(f).toMillis() > cutoff) {
+                        continue;
+                    }
+                    long length = Files.size(f);
+                    if (Files.deleteIfExists(f)) {
+                        sweep.removed += 1;
+                        sweep.bytes += length;
+                    }
+                }
+            }
+            dir.delete();
+            swept += 1;
+        }
+        return sweep;
+    }
+
+    /**
+     * @param keep
+     * @return true if some packed blob is not in keep.
+     */
+    public boolean packsHoldOtherThan(Set<String> keep) {
+        for (PackFile pack : getPacks()) {
+            for (String hash : pack.hashes()) {
+                if (!keep.contains(hash)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private byte[] readBytes(String hash) throws IOException {
+        try (InputStream in = open(hash)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** @return hashes of all loose blobs. */
+    private LinkedHashSet<String> looseHashes() throws IOException {
+        LinkedHashSet<String> out = new LinkedHashSet<String>();
+        File[] dirs = new File(objectDir).listFiles();
+        if (dirs == null) {
+            return out;
+        }
+        for (File dir : dirs) {
+            if (!dir.isDirectory() || dir.getName().length() != 2) {
+                continue;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath())) {
+                for (Path f : files) {
+                    String hash = dir.getName() + f.getFileName().toString();
+                    if (hash.endsWith(COMPRESSED_SUFFIX)) {
+                        hash = hash.substring(0, hash.length() - COMPRESSED_SUFFIX.length());
+                    }
+                    if (isHash(hash)) {
+                        out.add(hash);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Opens the packs in the pack folder the first time they are needed. */
+    private synchronized ArrayList<PackFile> getPacks() {
+        if (packs != null) {
+            return packs;
+        }
+        packs = new ArrayList<PackFile>();
+        File[] files = new File(objectDir + "pack").listFiles();
+        if (files == null) {
+            return packs;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(".pack")) {
+                continue;
+            }
+            Path index = Paths.get(f.getPath().substring(0, f.getPath().length() - 5) + ".idx");
+            try {
+                packs.add(new PackFile(f.toPath(), index));
+            } catch (IOException e) {
+                System.out.println("Could not open pack " + name);
+            }
+        }
+        return packs;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param bytes
+     * @return bytes as lower case hex, the form hashes are passed around in.
+     */
+    static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    /**
+     * @param hex a string of hex digits, such as a hash.
+     * @return the bytes it encodes.
+     */
+    static byte[] fromHex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) (Character.digit(hex.charAt(2 * i), 16) << 4
+                    | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return out;
+    }
+}
@@ -1,4 +1,7 @@
 import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -6,20 +9,39 @@ import java.util.Date;
 public class Commit implements Serializable {
     
     private static final long serialVersionUID = 1L;
+    /* Commits are only ever read through Java serialization, from repositories that
+     * predate SnapshotFile. Those stored fileHistory as a HashMap and commitID as a 
+     * String. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("commitMessage", String.class),
+        new ObjectStreamField("commitID", String.class),
+        new ObjectStreamField("parent", Commit.class),
+        new ObjectStreamField("dateCommitted", String.class),
+        new ObjectStreamField("fileHistory", HashMap.class),
+    };
     protected String commitMessage;
-    protected String commitID;
-    protected Commit parent;
+    protected long commitID;
+    /* The parent is looked up by ID through the tree, so holding a commit does not
+     * keep its whole history in memory. -1 for the initial commit. */
+    protected long parentID;
     protected String dateCommitted;
-    /* Maps fileNames to commit IDs. */
-    protected HashMap<String, String> fileHistory;
+    /* Maps fileNames to the hashes of their blobs in the BlobStore. Immutable and
+     * shared with the parent for every file this commit did not change. Null until 
+     * first used for commits read lazily from a snapshot. */
+    protected Manifest fileHistory;
+    /* Tree the commit belongs to; set once the commit or its parent is in one. */
+    protected transient CommitTree tree;
+    /* Ancestry index kept by CommitGraph; stored in snapshots or rebuilt on use. */
+    protected transient int generation;
+    protected transient long jumpID;
+    protected transient int graphVersion;
     
-    public Commit(String id, String userMessage, Commit givenParent, 
-            HashMap<String, String> history) {
+    public Commit(long id, String userMessage, Commit givenParent, Manifest history) {
         commitID = id;
         commitMessage = userMessage;
-        parent = givenParent;
+        setParent(givenParent);
         if (history == null) {
-            fileHistory = new HashMap<String, String>();
+            fileHistory = Manifest.EMPTY;
         } else {
             fileHistory = history;
         }
@@ -27,29 +49,80 @@ public class Commit implements Serializable {
         dateCommitted = date.format(new Date());
     }
     
+    /* Recreates a commit read back from disk, keeping its original date. A null 
+     * history is read from the tree's snapshot when first asked for. */
+    protected Commit(long id, String userMessage, long parentID, 
+            Manifest history, String date) {
+        commitID = id;
+        commitMessage = userMessage;
+        this.parentID = parentID;
+        fileHistory = history;
+        dateCommitted = date;
+    }
+    
     /* Almost never will you want to inherit the parent of the old commit, 
      * so set it to null by default. */
     public Commit(Commit c) {
         commitMessage = c.commitMessage;
-        parent = null;
-        fileHistory = c.fileHistory;
+        parentID = -1;
+        tree = c.tree;
+        fileHistory = c.getFileHistory();
         SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd kk:mm:ss");
         dateCommitted = date.format(new Date());
     }
     
+    /** @return the parent commit, or null for the initial commit. */
+    public Commit getParent() {
+        if (parentID < 0 || tree == null) {
+            return null;
+        }
+        return tree.getCommitWithID(parentID);
+    }
+    
+    /**
+     * Makes the given commit this one's parent. Use CommitTree.setParent for 
+     * commits already in a tree, so the change is recorded.
+     * @param p the new parent, or null for none.
+     */
+    protected void setParent(Commit p) {
+        parentID = p == null ? -1 : p.commitID;
+        if (p != null && p.tree != null) {
+            tree = p.tree;
+        }
+    }
+    
+    /** @return the files of this commit, reading them from the snapshot on first use. */
+    public Manifest getFileHistory() {
+        if (fileHistory == null) {
+            fileHistory = tree.readFileHistory(commitID);
+        }
+        return fileHistory;
+    }
+    
     /**
      * @param fileName
      * @return true if commit contains this file.
      */
     public boolean containsFile(String fileName) {
-        return fileHistory.containsKey(fileName);
+        return getFileHistory().containsKey(fileName);
     }
     
     /**
      * @param fileName
-     * @return commitID of last commit where a file was edited.
+     * @return hash of the blob holding this commit's version of the file.
      */
     public String getFileLastLocation(String fileName) {
-        return fileHistory.get(fileName);
+        return getFileHistory().get(fileName);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        commitMessage = (String) fields.get("commitMessage", null);
+        commitID = Long.parseLong((String) fields.get("commitID", null));
+        Commit parent = (Commit) fields.get("parent", null);
+        parentID = parent == null ? -1 : parent.commitID;
+        dateCommitted = (String) fields.get("dateCommitted", null);
+        fileHistory = Manifest.of((HashMap<String, String>) fields.get("fileHistory", null));
     }
 }
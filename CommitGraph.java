@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+
+/**
+ * Ancestry index over the commits of a CommitTree. Every commit gets a generation 
+ * number (its distance from the root, plus one) and a single skip pointer to a further
+ * ancestor, chosen in the skew-binary pattern of Myers' random access lists: the skip
+ * of a commit is either its parent or the skip of its parent's skip, so that any 
+ * ancestor, and the merge base of any two commits, is reached in O(log n) steps while
+ * each commit only stores two fields.
+ *
+ * Commits are indexed as they are added, parents first. Changing the parent of a 
+ * commit already in the graph makes every indexed commit stale; those are re-indexed 
+ * the next time they are looked at. Snapshots store each commit's generation and skip,
+ * which are taken as they are until the first such change.
+ *
+ * Parents and skips are kept as commit IDs and looked up through the tree, so the 
+ * commits a search passes over can be loaded and dropped again as it goes.
+ */
+public class CommitGraph {
+    
+    private final CommitTree tree;
+    /* Commits indexed under any other version are stale. */
+    private int version = 1;
+    
+    /**
+     * @param tree the tree whose commits are indexed.
+     */
+    public CommitGraph(CommitTree tree) {
+        this.tree = tree;
+    }
+    
+    /**
+     * Takes the index of a commit read from a snapshot, unless parent links have 
+     * been changed since, which may have made it stale.
+     * @param c
+     * @param generation
+     * @param jumpID
+     */
+    public void loaded(Commit c, int generation, long jumpID) {
+        if (version == 1) {
+            c.generation = generation;
+            c.jumpID = jumpID;
+            c.graphVersion = version;
+        }
+    }
+    
+    /**
+     * Indexes a commit, and any of its ancestors that are not indexed yet. 
+     * Walks iteratively, so arbitrarily long histories do not exhaust the stack.
+     * @param c
+     */
+    public void add(Commit c) {
+        if (isIndexed(c)) {
+            return;
+        }
+        ArrayList<Commit> chain = new ArrayList<Commit>();
+        Commit a = c;
+        for (; a != null && !isIndexed(a); a = a.getParent()) {
+            chain.add(a);
+        }
+        /* Each is indexed from the parent object just indexed, not looked up again: a 
+         * lazily read tree may have dropped that one and would read back its stale 
+         * stored index. */
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            index(chain.get(i), i == chain.size() - 1 ? a : chain.get(i + 1));
+        }
+    }
+    
+    /** Marks every indexed commit stale, after a parent link was changed. */
+    public void invalidate() {
+        version += 1;
+    }
+    
+    /**
+     * @param c
+     * @return number of commits from the root to c, both included.
+     */
+    public int generation(Commit c) {
+        add(c);
+        return c.generation;
+    }
+    
+    /**
+     * @param c
+     * @param generation
+     * @return the ancestor of c (or c itself) with the given generation, or null if 
+     * c's generation is lower.
+     */
+    public Commit ancestorAt(Commit c, int generation) {
+        add(c);
+        if (generation < 1 || generation > c.generation) {
+            return null;
+        }
+        while (c.generation > generation) {
+            Commit jump = jump(c);
+            c = jump.generation >= generation ? jump : parent(c);
+        }
+        return c;
+    }
+    
+    /**
+     * Finds the closest common ancestor of two commits. Both are first brought to 
+     * the same generation; from there they move up together, taking skips whenever
+     * the skips do not already meet.
+     * @param a
+     * @param b
+     * @return the merge base, or null if a and b share no ancestor.
+     */
+    public Commit mergeBase(Commit a, Commit b) {
+        add(a);
+        add(b);
+        if (a.generation > b.generation) {
+            a = ancestorAt(a, b.generation);
+        } else if (b.generation > a.generation) {
+            b = ancestorAt(b, a.generation);
+        }
+        while (a.commitID != b.commitID) {
+            if (a.parentID < 0) {
+                return null;
+            } else if (a.jumpID != b.jumpID) {
+                a = jump(a);
+                b = jump(b);
+            } else {
+                a = parent(a);
+                b = parent(b);
+            }
+        }
+        return a;
+    }
+    
+    private boolean isIndexed(Commit c) {
+        return c.graphVersion == version;
+    }
+    
+    /* Indexes c, given its parent p, which must already be indexed. */
+    private void index(Commit c, Commit p) {
+        if (p == null) {
+            c.generation = 1;
+            c.jumpID = c.commitID;
+        } else {
+            c.generation = p.generation + 1;
+            Commit pj = jump(p);
+            Commit pjj = jump(pj);
+            if (p.generation - pj.generation == pj.generation - pjj.generation) {
+                c.jumpID = pjj.commitID;
+            } else {
+                c.jumpID = p.commitID;
+            }
+        }
+        c.graphVersion = version;
+    }
+    
+    /* The indexed parent and skip of an indexed commit. A commit dropped from memory 
+     * and read again has to be indexed again if its stored index is stale. */
+    private Commit parent(Commit c) {
+        Commit p = c.getParent();
+        add(p);
+        return p;
+    }
+    
+    private Commit jump(Commit c) {
+        Commit j = c.jumpID == c.commitID ? c : tree.getCommitWithID(c.jumpID);
+        add(j);
+        return j;
+    }
+}
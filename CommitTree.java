@@ -1,70 +1,439 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-
+/**
+ * All commits and branches of a repository.
+ *
+ * A tree read from a version 4 snapshot starts out with only its branch heads and 
+ * current branch in memory. Commits are read from the snapshot when first looked up 
+ * and kept in a cache of the most recently used ones, whose size comes from the 
+ * ankgit.commitCache system property or ANKGIT_COMMIT_CACHE environment variable 
+ * (4096 by default); their files and the map from messages to IDs are read when first 
+ * used. Commits added since the snapshot, and snapshot commits that have been changed, 
+ * stay in memory until the next snapshot is written.
+ */
 public class CommitTree implements Serializable {
     
     private static final long serialVersionUID = 1L;
+    /* Trees are only ever read through Java serialization, from repositories that
+     * predate SnapshotFile. Those kept string commit IDs in a HashMap. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("currentBranch", String.class),
+        new ObjectStreamField("lastcommitID", int.class),
+        new ObjectStreamField("commitTree", HashMap.class),
+        new ObjectStreamField("branchHeads", HashMap.class),
+        new ObjectStreamField("commitMessagesToID", HashMap.class),
+    };
+    private static final int DEFAULT_CACHE_SIZE = 4096;
     private String currentBranch;
-    protected int lastcommitID;
+    protected long lastcommitID;
     
-    /* Maps commit IDs to Commit Objects */
-    private HashMap<String, Commit> commitTree;
-    /* Maps branch names to Commit Objects */
-    private HashMap<String, Commit> branchHeads;
-    /* Maps commit messages to commit IDs */
-    private HashMap<String, ArrayList<String>> commitMessagesToID;
+    /* Commit objects not in the snapshot, indexed by commit ID minus firstID. IDs are 
+     * handed out in sequence, so the array is dense apart from its unused tail. */
+    private Commit[] commitTree;
+    private long firstID;
+    private int commitCount;
+    /* Maps branch names to the IDs of their head commits */
+    private HashMap<String, Long> branchHeads;
+    /* Maps commit messages to commit IDs; null until read from the snapshot. */
+    private HashMap<String, ArrayList<Long>> commitMessagesToID;
+    /* Messages added (true) and removed (false) before the map was read. */
+    private transient ArrayList<Object[]> messageChanges;
+    /* Snapshot holding the commits below firstID, or null if all are in memory. */
+    private transient SnapshotFile snapshot;
+    /* Snapshot commits in use, least recently used first. */
+    private transient LinkedHashMap<Long, Commit> cache;
+    /* Snapshot commits changed since it was written, and those removed since. */
+    private transient HashMap<Long, Commit> changed;
+    private transient HashSet<Long> removed;
+    /* Receives a record of every change once attached; never serialized. */
+    private transient Journal journal;
+    /* Generation numbers and skip pointers for findSplitPoint; never serialized. */
+    private transient CommitGraph graph;
+    /* Told about changed messages once attached, so its postings can be refreshed. */
+    private transient MessageIndex messageIndex;
     
     public CommitTree() {
-        commitTree = new HashMap<String, Commit>();
-        commitTree.put("0", new Commit("0", "initial commit", null, null));
-        branchHeads = new HashMap<String, Commit>();
-        branchHeads.put("master", commitTree.get("0"));
+        commitTree = new Commit[16];
+        Commit initial = new Commit(0, "initial commit", null, null);
+        putCommit(initial);
+        branchHeads = new HashMap<String, Long>();
+        branchHeads.put("master", 0L);
+        getGraph().add(initial);
         currentBranch = "master";
         lastcommitID = 0;
-        commitMessagesToID = new HashMap<String, ArrayList<String>>();
-        ArrayList<String> matchingIDs = new ArrayList<String>();
-        matchingIDs.add("0");
+        commitMessagesToID = new HashMap<String, ArrayList<Long>>();
+        ArrayList<Long> matchingIDs = new ArrayList<Long>();
+        matchingIDs.add(0L);
         commitMessagesToID.put("initial commit", matchingIDs);
     }
     
+    /**
+     * Creates a tree with no commits or branches. Used by SnapshotFile, which fills 
+     * it in through restoreCommit and restoreBranch.
+     */
+    protected CommitTree(String currentBranch, long lastcommitID) {
+        commitTree = new Commit[(int) Math.min(Integer.MAX_VALUE - 8, lastcommitID + 1)];
+        branchHeads = new HashMap<String, Long>();
+        commitMessagesToID = new HashMap<String, ArrayList<Long>>();
+        this.currentBranch = currentBranch;
+        this.lastcommitID = lastcommitID;
+    }
+    
+    /**
+     * Creates a tree whose commits up to lastcommitID are read from the given 
+     * snapshot as they are needed. Branches are filled in through restoreBranch.
+     */
+    protected CommitTree(String currentBranch, long lastcommitID, SnapshotFile snapshot) {
+        commitTree = new Commit[16];
+        firstID = lastcommitID + 1;
+        branchHeads = new HashMap<String, Long>();
+        this.currentBranch = currentBranch;
+        this.lastcommitID = lastcommitID;
+        this.snapshot = snapshot;
+        final int limit = cacheSize();
+        cache = new LinkedHashMap<Long, Commit>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Commit> eldest) {
+                return size() > limit;
+            }
+        };
+        changed = new HashMap<Long, Commit>();
+        removed = new HashSet<Long>();
+        messageChanges = new ArrayList<Object[]>();
+    }
+    
+    /** @return the configured number of snapshot commits to keep in memory. */
+    public static int cacheSize() {
+        String setting = System.getProperty("ankgit.commitCache");
+        if (setting == null) {
+            setting = System.getenv("ANKGIT_COMMIT_CACHE");
+        }
+        if (setting != null) {
+            try {
+                int size = Integer.parseInt(setting.trim());
+                if (size > 0) {
+                    return size;
+                }
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+            System.out.println("Ignoring invalid commit cache size: " + setting);
+        }
+        return DEFAULT_CACHE_SIZE;
+    }
+    
+    /** Puts a loaded commit back into the tree without any other bookkeeping. */
+    protected void restoreCommit(Commit c) {
+        putCommit(c);
+        getGraph().add(c);
+    }
+    
+    /** Puts a loaded branch head back into the tree without recording it. */
+    protected void restoreBranch(String branchName, long headID) {
+        branchHeads.put(branchName, headID);
+    }
+    
+    /** @return true if commits are read from a snapshot as they are needed. */
+    public boolean isLazy() {
+        return snapshot != null;
+    }
+    
+    /** Returns the map from commit messages to IDs, for saving and restoring it. */
+    protected HashMap<String, ArrayList<Long>> getMessageIndex() {
+        if (commitMessagesToID == null) {
+            try {
+                commitMessagesToID = snapshot.readMessages();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            for (Object[] change : messageChanges) {
+                if ((Boolean) change[0]) {
+                    addCommitMessage((String) change[1], (Long) change[2]);
+                } else {
+                    removeCommitMessage((String) change[1], (Long) change[2]);
+                }
+            }
+            messageChanges = null;
+        }
+        return commitMessagesToID;
+    }
+    
+    /**
+     * Attaches the journal that records every later change to this tree. 
+     * Attach it only after replaying, so replayed changes are not recorded twice.
+     * @param journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Attaches the message search index, which is told about every later change to 
+     * the message of an existing commit. Attach it only after replaying the journal.
+     * @param messageIndex
+     */
+    public void setMessageIndex(MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+    
     /**A series of utility methods to return access to private instance variables
      * From a design standpoint, it made sense to have these variables be private, since
      * the commitTree really doesn't need to expose how it works on the inside.
      */
     
     /**Commit management (method names explain functionality.) */
-    public boolean containsCommit(String commitID) {
-        return commitTree.containsKey(commitID);
+    public boolean containsCommit(long commitID) {
+        return getCommitWithID(commitID) != null;
     }
     
     /** Returns head commit of current branch */ 
     public Commit getHeadCommit() {
-        return branchHeads.get(currentBranch);
+        return getBranchHead(currentBranch);
     }
     
     /** Gets commit with ID string matching parameter. */
-    public Commit getCommitWithID(String id) {
-        if (!commitTree.containsKey(id)) {
+    public Commit getCommitWithID(long id) {
+        if (id < 0) {
+            return null;
+        } else if (id >= firstID) {
+            return id - firstID >= commitTree.length ? null : commitTree[(int) (id - firstID)];
+        } else if (removed.contains(id)) {
             return null;
-        } else {
-            return commitTree.get(id);
+        }
+        Commit c = changed.get(id);
+        if (c == null) {
+            c = cache.get(id);
+        }
+        if (c == null) {
+            try {
+                c = snapshot.readCommit(id);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (c != null) {
+                c.tree = this;
+                cache.put(id, c);
+                getGraph().loaded(c, c.generation, c.jumpID);
+            }
+        }
+        return c;
+    }
+    
+    /**
+     * Reads the files of a snapshot commit, starting from the nearest commit on the way
+     * to it that has its files in memory or stored in full.
+     * @param id
+     * @return the commit's files.
+     */
+    protected Manifest readFileHistory(long id) {
+        try {
+            return snapshot.readFiles(id, this);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * @param id
+     * @return the files of the commit if they are in memory already, else null.
+     */
+    protected Manifest residentFiles(long id) {
+        Commit c = id >= firstID ? getCommitWithID(id) : changed.get(id);
+        if (c == null && id < firstID) {
+            c = cache.get(id);
+        }
+        return c == null ? null : c.fileHistory;
+    }
+    
+    /* Keeps a snapshot commit in memory from now on, as it is about to be changed. */
+    private void pin(Commit c) {
+        if (c.commitID < firstID) {
+            c.getFileHistory();
+            cache.remove(c.commitID);
+            changed.put(c.commitID, c);
         }
     }
     
     /** adds a commit by adding it to the tree. Some other bookkeeping for other data structures. */
     public void addCommit(Commit c) {
-        commitTree.put(c.commitID, c);
-        addCommitMessage(c.commitMessage, c.commitID);
-        branchHeads.put(currentBranch, c);
+        if (getCommitWithID(c.commitID) == null) {
+            putCommit(c);
+            addCommitMessage(c.commitMessage, c.commitID);
+            lastcommitID = Math.max(lastcommitID, c.commitID);
+        }
+        getGraph().add(c);
+        branchHeads.put(currentBranch, c.commitID);
+        if (journal != null) {
+            journal.logCommit(c);
+        }
+    }
+    
+    /**
+     * Adds a run of new commits at once, each the parent of the next, and makes the 
+     * last one the head of the current branch. Same as addCommit on each in turn, 
+     * with the commit array grown only once.
+     * @param commits
+     */
+    public void addCommits(List<Commit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+        long maxID = lastcommitID;
+        for (Commit c : commits) {
+            maxID = Math.max(maxID, c.commitID);
+        }
+        if (maxID - firstID < Integer.MAX_VALUE - 8 && maxID - firstID >= commitTree.length) {
+            commitTree = Arrays.copyOf(commitTree, (int) Math.min(Integer.MAX_VALUE - 8, 
+                    Math.max(maxID - firstID + 1, 2L * commitTree.length)));
+        }
+        for (Commit c : commits) {
+            addCommit(c);
+        }
+    }
+    
+    /** Changes the message of a commit that is already in the tree. */
+    public void setCommitMessage(Commit c, String message) {
+        pin(c);
+        removeCommitMessage(c.commitMessage, c.commitID);
+        c.commitMessage = message;
+        addCommitMessage(message, c.commitID);
+        if (messageIndex != null) {
+            messageIndex.amended(c);
+        }
+        if (journal != null) {
+            journal.logMessage(c);
+        }
     }
     
-    /** Returns all commits in a collection form */
+    /**
+     * Deletes a commit that no branch reaches any more, with its message entries. 
+     * Its ID is not handed out again.
+     */
+    public void removeCommit(Commit c) {
+        if (getCommitWithID(c.commitID) == null) {
+            return;
+        }
+        if (c.commitID >= firstID) {
+            commitTree[(int) (c.commitID - firstID)] = null;
+        } else {
+            cache.remove(c.commitID);
+            changed.remove(c.commitID);
+            removed.add(c.commitID);
+        }
+        commitCount -= 1;
+        removeCommitMessage(c.commitMessage, c.commitID);
+        if (messageIndex != null) {
+            messageIndex.removed(c.commitID);
+        }
+        if (journal != null) {
+            journal.logRemoveCommit(c.commitID);
+        }
+    }
+    
+    /** 
+     * Changes the parent of a commit that is already in the tree. The commit graph is 
+     * rebuilt only if the parent really changes.
+     */
+    public void setParent(Commit c, Commit parent) {
+        if (c.parentID == (parent == null ? -1 : parent.commitID)) {
+            return;
+        }
+        pin(c);
+        c.setParent(parent);
+        getGraph().invalidate();
+        if (journal != null) {
+            journal.logAmend(c);
+        }
+    }
+    
+    /** 
+     * Returns all commits in a collection form, in order of their IDs. Every commit of a
+     * lazily read tree is read, and kept in memory for as long as the collection is.
+     */
     public Collection<Commit> getAllCommits() {
-        return commitTree.values();
+        ArrayList<Commit> all = new ArrayList<Commit>(Math.max(commitCount, 16));
+        for (long id = 0; id < firstID; id++) {
+            Commit c = getCommitWithID(id);
+            if (c != null) {
+                all.add(c);
+            }
+        }
+        for (Commit c : commitTree) {
+            if (c != null) {
+                all.add(c);
+            }
+        }
+        return all;
+    }
+    
+    /**
+     * Walks the commits from the highest ID down, which is the order they were made in, 
+     * newest first. Nothing is copied, so stopping early costs nothing for the rest.
+     * @return the commits, newest first.
+     */
+    public Iterable<Commit> newestFirst() {
+        return new Iterable<Commit>() {
+            @Override
+            public Iterator<Commit> iterator() {
+                return new Iterator<Commit>() {
+                    private Commit next = nextBelow(lastcommitID + 1);
+                    
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+                    
+                    @Override
+                    public Commit next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Commit c = next;
+                        next = nextBelow(c.commitID);
+                        return c;
+                    }
+                    
+                    private Commit nextBelow(long id) {
+                        Commit c = null;
+                        while (c == null && --id >= 0) {
+                            c = getCommitWithID(id);
+                        }
+                        return c;
+                    }
+                };
+            }
+        };
+    }
+    
+    /* Stores c under its ID, growing the array as IDs run past its end. */
+    private void putCommit(Commit c) {
+        if (c.commitID - firstID >= Integer.MAX_VALUE - 8 || c.commitID < firstID) {
+            throw new IllegalStateException("Commit ID " + c.commitID + " is out of range");
+        }
+        int id = (int) (c.commitID - firstID);
+        if (id >= commitTree.length) {
+            commitTree = Arrays.copyOf(commitTree, 
+                    (int) Math.min(Integer.MAX_VALUE - 8, Math.max(id + 1L, 2L * commitTree.length)));
+        }
+        if (commitTree[id] == null) {
+            commitCount += 1;
+        }
+        commitTree[id] = c;
+        c.tree = this;
     }
     
     /** Branch management methods */ 
@@ -79,12 +448,16 @@ public class CommitTree implements Serializable {
     
     /** Adds a branch */
     public void addBranch(String branchName) {
-        branchHeads.put(branchName, getHeadCommit());
+        branchHeads.put(branchName, branchHeads.get(currentBranch));
+        if (journal != null) {
+            journal.logBranchHead(branchName, branchHeads.get(currentBranch));
+        }
     }
     
     /** Returns head commit of a branch. */
     public Commit getBranchHead(String branch) {
-        return branchHeads.get(branch);
+        Long id = branchHeads.get(branch);
+        return id == null ? null : getCommitWithID(id);
     }
     
     /** Returns name of current branch */
@@ -100,77 +473,125 @@ public class CommitTree implements Serializable {
     /** Sets current branch to some new branch name */
     public void setCurrentBranch(String currentBranch) {
         this.currentBranch = currentBranch;
+        if (journal != null) {
+            journal.logCurrentBranch(currentBranch);
+        }
     }
     
     /** Changes the head commit of a branch to the given commit */
-    public void setBranchHead(String branch, String commitID) {
-        if (commitTree.containsKey(commitID)) {
-            branchHeads.put(branch, commitTree.get(commitID));
+    public void setBranchHead(String branch, long commitID) {
+        if (containsCommit(commitID)) {
+            branchHeads.put(branch, commitID);
+            if (journal != null) {
+                journal.logBranchHead(branch, commitID);
+            }
         }
     }
     
     /** Removes an added branch */
     public void removeBranch(String branchName) {
         branchHeads.remove(branchName);
+        if (journal != null) {
+            journal.logRemoveBranch(branchName);
+        }
     }
     
     /** commit Message to ID Map Utility */
     public boolean containsCommitMessage(String message) {
-        return commitMessagesToID.containsKey(message);
+        return getMessageIndex().containsKey(message);
     }
     
-    /** Adds a commit message and updates list of IDs with that message */
-    public void addCommitMessage(String message, String commitID) {
-        if (!commitMessagesToID.containsKey(message)) {
-            ArrayList<String> matchingIDs = new ArrayList<String>();
+    /** Adds a commit message and updates list of IDs with that message, kept in ID order. */
+    public void addCommitMessage(String message, long commitID) {
+        if (commitMessagesToID == null) {
+            messageChanges.add(new Object[] {true, message, commitID});
+            return;
+        }
+        ArrayList<Long> matchingIDs = commitMessagesToID.get(message);
+        if (matchingIDs == null) {
+            matchingIDs = new ArrayList<Long>();
             commitMessagesToID.put(message, matchingIDs);
-        } else {
-            commitMessagesToID.get(message).add(commitID);
+        }
+        int at = Collections.binarySearch(matchingIDs, commitID);
+        if (at < 0) {
+            matchingIDs.add(-at - 1, commitID);
+        }
+    }
+    
+    /* Takes a commit's ID off the list of IDs with its message. */
+    private void removeCommitMessage(String message, long commitID) {
+        if (commitMessagesToID == null) {
+            messageChanges.add(new Object[] {false, message, commitID});
+            return;
+        }
+        ArrayList<Long> matchingIDs = commitMessagesToID.get(message);
+        if (matchingIDs != null) {
+            matchingIDs.remove(Long.valueOf(commitID));
+            if (matchingIDs.isEmpty()) {
+                commitMessagesToID.remove(message);
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the map from messages to IDs from the commits themselves. Trees saved
+     * before addCommitMessage recorded the first ID of every message are repaired 
+     * this way when loaded.
+     */
+    protected void rebuildMessageIndex() {
+        commitMessagesToID = new HashMap<String, ArrayList<Long>>();
+        for (Commit c : getAllCommits()) {
+            addCommitMessage(c.commitMessage, c.commitID);
         }
     }
     
     /** Returns list of commit IDs that have a given commit message. */
-    public ArrayList<String> getMatchingIDs(String message) {
-        return commitMessagesToID.get(message);
+    public ArrayList<Long> getMatchingIDs(String message) {
+        return getMessageIndex().get(message);
     }
     
     /**
-     * Locates the split points between two branches by walking backwards along both branches
-     * and putting all the commit IDs that are covered in a HashSet. The first time that a 
-     * commit ID is shared is the earliest ancestor (a.k.a the split point).
+     * Locates the split point between two branches: their closest common ancestor, 
+     * found by CommitGraph in O(log n) steps from generation numbers and skip pointers
+     * instead of walking both histories.
      * @param branchName1
      * @param branchName2
      * @return Commit object that is the split point between these two branches.
      */
-    
     public Commit findSplitPoint(String branchName1, String branchName2) {
-        HashSet<String> history1 = new HashSet<String>();
-        HashSet<String> history2 = new HashSet<String>();
-        Commit c1 = getBranchHead(branchName1);
-        Commit c2 = getBranchHead(branchName2);
-        boolean end = false;
-        while (!end) {
-            if (c1.commitID.equals(c2.commitID)) {
-                return c1;
-            }
-            if (history2.contains(c1.commitID)) {
-                return c1;
-            } else if (history1.contains(c2.commitID)) {
-                return c2;
-            } else {
-                history1.add(c1.commitID);
-                history2.add(c2.commitID);
-                if (c1.parent == null && c2.parent == null) {
-                    end = true;
-                }
-                if (c1.parent != null) {
-                    c1 = c1.parent;
-                }
-                if (c2.parent != null) {
-                    c2 = c2.parent;
-                }
-            }
+        Trace.Phase phase = Trace.phase("find split point");
+        try (phase) {
+            return getGraph().mergeBase(getBranchHead(branchName1), getBranchHead(branchName2));
+        }
+    }
+    
+    /**
+     * Reads a tree serialized before commit IDs were numbers, converting its 
+     * string-keyed commit map into the array. Its message index left out the first
+     * ID of every message, so that is rebuilt from the commits.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        currentBranch = (String) fields.get("currentBranch", null);
+        lastcommitID = fields.get("lastcommitID", 0);
+        commitTree = new Commit[(int) lastcommitID + 1];
+        for (Commit c : ((HashMap<String, Commit>) fields.get("commitTree", null)).values()) {
+            putCommit(c);
+        }
+        branchHeads = new HashMap<String, Long>();
+        for (Map.Entry<String, Commit> entry 
+                : ((HashMap<String, Commit>) fields.get("branchHeads", null)).entrySet()) {
+            branchHeads.put(entry.getKey(), entry.getValue().commitID);
+        }
+        rebuildMessageIndex();
+    }
+    
+    /** Returns the commit graph, building it on first use for deserialized trees. */
+    protected CommitGraph getGraph() {
+        if (graph == null) {
+            graph = new CommitGraph(this);
         }
-        return null;
+        return graph;
     }
 }
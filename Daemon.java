@@ -0,0 +1,277 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a repository loaded in a long running process and serves commands to it over
+ * the Unix domain socket ".ankgit/daemon.sock", so a command costs neither JVM startup
+ * nor reading the commit tree. Started with "java AnkGit daemon" and stopped with
+ * "java AnkGit daemon stop", or by itself after being idle (ankgit.daemon.idle system
+ * property or ANKGIT_DAEMON_IDLE environment variable, in seconds; 15 minutes by default).
+ *
+ * A request is the command's arguments separated by NUL bytes and ended by a newline;
+ * the reply is the command's output, after which the daemon closes the connection.
+ * Any socket client can send one, e.g. printf 'status\n' | nc -U .ankgit/daemon.sock.
+ * Prompts are not served: clients ask before sending a dangerous command.
+ *
+ * Commands run one at a time and everything they change is saved before the reply,
+ * exactly as if they had run in their own process. Before each command the daemon
+ * compares the files in .ankgit with how it left them and reloads the repository if
+ * another process changed anything. A command that fails saves nothing, and the 
+ * repository is read again from disk for the next one.
+ */
+public class Daemon {
+
+    public static final String SOCKET_PATH = ".ankgit/daemon.sock";
+    private static final long DEFAULT_IDLE_SECONDS = 15 * 60;
+    /* Longest request accepted, to keep a misbehaving client from using up memory. */
+    private static final int MAX_REQUEST = 1 << 20;
+
+    private final Path root;
+    private final Path socket;
+    private final long idleNanos;
+    private AnkGit git;
+    /* State of .ankgit after the last command the daemon ran itself. */
+    private TreeMap<String, String> stamp;
+    private boolean stopping;
+
+    /**
+     * @param root working directory of the repository.
+     * @param idleNanos how long to wait for a request before shutting down.
+     */
+    public Daemon(Path root, long idleNanos) {
+        this.root = root;
+        this.socket = root.resolve(SOCKET_PATH);
+        this.idleNanos = idleNanos;
+    }
+
+    /**
+     * Entry point for "java AnkGit daemon [stop]".
+     * @param args
+     */
+    public static void main(String[] args) {
+        Path root = Paths.get(System.getProperty("user.dir"));
+        if (args.length > 1 && args[1].equals("stop")) {
+            if (!forward(new String[] {"daemon", "stop"})) {
+                System.out.println("No daemon is running.");
+            }
+            return;
+        }
+        if (!Files.isDirectory(root.resolve(".ankgit"))) {
+            System.out.println("Not in an initialized AnkGit directory.");
+            return;
+        }
+        try {
+            new Daemon(root, TimeUnit.SECONDS.toNanos(idleSeconds())).serve();
+        } catch (IOException e) {
+            System.out.println("Daemon failed: " + e.getMessage());
+        }
+    }
+
+    /** @return the configured idle timeout in seconds. */
+    private static long idleSeconds() {
+        String setting = System.getProperty("ankgit.daemon.idle");
+        if (setting == null) {
+            setting = System.getenv("ANKGIT_DAEMON_IDLE");
+        }
+        if (setting != null) {
+            try {
+                return Math.max(1, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid idle timeout: " + setting);
+            }
+        }
+        return DEFAULT_IDLE_SECONDS;
+    }
+
+    /**
+     * Sends a command to the daemon of the repository in the current directory and
+     * copies its output to System.out.
+     * @param args command line arguments.
+     * @return false if no daemon is running (or the arguments cannot be sent), in which
+     * case the caller should run the command itself.
+     */
+    public static boolean forward(String[] args) {
+        Path socket = Paths.get(System.getProperty("user.dir")).resolve(SOCKET_PATH);
+        if (!Files.exists(socket)) {
+            return false;
+        }
+        StringBuilder request = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].indexOf('\n') >= 0 || args[i].indexOf('\0') >= 0) {
+                return false;
+            }
+            if (i > 0) {
+                request.append('\0');
+            }
+            request.append(args[i]);
+        }
+        request.append('\n');
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            /* Left behind by a daemon that did not shut down cleanly. */
+            return false;
+        }
+        try (InputStream in = Channels.newInputStream(channel)) {
+            ByteBuffer out = StandardCharsets.UTF_8.encode(request.toString());
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                System.out.write(buffer, 0, n);
+            }
+            System.out.flush();
+        } catch (IOException e) {
+            System.out.println("Lost the connection to the daemon: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Listens for requests until stopped or idle for too long.
+     * @throws IOException if the socket cannot be set up.
+     */
+    public void serve() throws IOException {
+        if (Files.exists(socket)) {
+            if (forward(new String[] {"daemon", "ping"})) {
+                System.out.println("A daemon is already running for this repository.");
+                return;
+            }
+            Files.delete(socket);
+        }
+        git = new AnkGit();
+        git.load();
+        stamp = stamp();
+        PrintStream console = System.out;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                Selector selector = Selector.open()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            console.println("Serving " + root + " on " + SOCKET_PATH);
+            long lastRequest = System.nanoTime();
+            while (!stopping) {
+                long idle = System.nanoTime() - lastRequest;
+                if (idle >= idleNanos || !Files.isDirectory(root.resolve(".ankgit"))) {
+                    break;
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleNanos - idle)));
+                selector.selectedKeys().clear();
+                SocketChannel client = server.accept();
+                if (client == null) {
+                    continue;
+                }
+                try (SocketChannel c = client) {
+                    c.configureBlocking(true);
+                    handle(c);
+                } catch (IOException e) {
+                    console.println("Request failed: " + e.getMessage());
+                } finally {
+                    System.setOut(console);
+                }
+                lastRequest = System.nanoTime();
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+        console.println("Daemon stopped.");
+    }
+
+    /** Reads one request from the client, runs it and sends back its output. */
+    private void handle(SocketChannel client) throws IOException {
+        InputStream in = Channels.newInputStream(client);
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1 || request.size() >= MAX_REQUEST) {
+                return;
+            }
+            request.write(b);
+        }
+        String[] args = request.toString(StandardCharsets.UTF_8.name()).split("\0", -1);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(client), 1 << 16);
+        PrintStream reply = new PrintStream(out, false, StandardCharsets.UTF_8.name());
+        System.setOut(reply);
+        if (args[0].equals("daemon")) {
+            if (args.length > 1 && args[1].equals("stop")) {
+                stopping = true;
+                reply.println("Daemon stopped.");
+            }
+        } else if (args[0].equals("i-rebase")) {
+            reply.println("Interactive rebase cannot run in the daemon.");
+        } else {
+            Trace.Phase phase = Trace.phase(args[0]);
+            try (phase) {
+                if (git == null || !stamp().equals(stamp)) {
+                    git = new AnkGit();
+                    git.load();
+                }
+                git.execute(args, new Scanner(""), true);
+                git.save();
+                stamp = stamp();
+            } catch (IOException | RuntimeException e) {
+                /* The loaded state may be half changed; read it again from disk next time. */
+                reply.println("Command failed: " + e);
+                git = null;
+                stamp = null;
+            }
+            Trace.report(System.err);
+        }
+        reply.flush();
+    }
+
+    /**
+     * Describes the current state of the files in .ankgit (and of the pack folder,
+     * which changes on repack) by size, modification time and file key; a file
+     * replaced by an atomic move always gets a new key.
+     */
+    private TreeMap<String, String> stamp() {
+        TreeMap<String, String> files = new TreeMap<String, String>();
+        ArrayList<Path> paths = new ArrayList<Path>();
+        File[] entries = root.resolve(".ankgit").toFile().listFiles();
+        if (entries != null) {
+            for (File f : entries) {
+                paths.add(f.toPath());
+            }
+        }
+        paths.add(root.resolve(".ankgit/objects/pack"));
+        for (Path p : paths) {
+            if (p.equals(socket)) {
+                continue;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                files.put(p.toString(), attrs.size() + " "
+                        + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) + " " + attrs.fileKey());
+            } catch (IOException e) {
+                files.put(p.toString(), "missing");
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Binary deltas between two versions of a file, in the style of git's pack deltas.
+ * A delta is the base and result lengths followed by instructions that either copy a
+ * range of the base or insert literal bytes:
+ *   copy:   0x80, offset, length     (varints)
+ *   insert: length (1..127), bytes
+ */
+public class Delta {
+
+    /* Matches shorter than this are cheaper to insert than to copy. */
+    private static final int BLOCK = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int COPY = 0x80;
+
+    /**
+     * Computes a delta that turns base into target. Every BLOCK bytes of the base are
+     * indexed by their hash; the target is scanned with a rolling hash and each hit is
+     * verified and extended as far as both sides agree.
+     * @param base
+     * @param target
+     * @return the encoded delta.
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarLong(out, base.length);
+        writeVarLong(out, target.length);
+        HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            int h = blockHash(base, i);
+            if (!blocks.containsKey(h)) {
+                blocks.put(h, i);
+            }
+        }
+        int literalStart = 0;
+        int i = 0;
+        int h = target.length >= BLOCK ? blockHash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            Integer candidate = blocks.get(h);
+            if (candidate != null && regionMatches(base, candidate, target, i, BLOCK)) {
+                int start = candidate;
+                int length = BLOCK;
+                while (i + length < target.length && start + length < base.length
+                        && base[start + length] == target[i + length]) {
+                    length += 1;
+                }
+                /* Grow the match backwards into pending literal bytes too. */
+                while (i > literalStart && start > 0 && base[start - 1] == target[i - 1]) {
+                    i -= 1;
+                    start -= 1;
+                    length += 1;
+                }
+                writeInsert(out, target, literalStart, i);
+                out.write(COPY);
+                writeVarLong(out, start);
+                writeVarLong(out, length);
+                i += length;
+                literalStart = i;
+                if (i + BLOCK <= target.length) {
+                    h = blockHash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = roll(h, target[i], target[i + BLOCK]);
+                }
+                i += 1;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param base
+     * @param delta
+     * @return the version delta was created for.
+     * @throws IOException if delta does not belong to base.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        int[] pos = {0};
+        long baseLength = readVarLong(delta, pos);
+        long targetLength = readVarLong(delta, pos);
+        if (baseLength != base.length) {
+            throw new IOException("Delta base has the wrong length");
+        }
+        byte[] target = new byte[(int) targetLength];
+        int t = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++] & 0xFF;
+            if (op == COPY) {
+                int offset = (int) readVarLong(delta, pos);
+                int length = (int) readVarLong(delta, pos);
+                System.arraycopy(base, offset, target, t, length);
+                t += length;
+            } else {
+                System.arraycopy(delta, pos[0], target, t, op);
+                pos[0] += op;
+                t += op;
+            }
+        }
+        if (t != target.length) {
+            throw new IOException("Delta produced the wrong length");
+        }
+        return target;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static boolean regionMatches(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        for (int k = 0; k < length; k++) {
+            if (a[aFrom + k] != b[bFrom + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Polynomial rolling hash over BLOCK bytes; POW is 31^(BLOCK - 1). */
+    private static final int POW;
+
+    static {
+        int p = 1;
+        for (int k = 1; k < BLOCK; k++) {
+            p *= 31;
+        }
+        POW = p;
+    }
+
+    private static int blockHash(byte[] data, int from) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            h = h * 31 + (data[from + k] & 0xFF);
+        }
+        return h;
+    }
+
+    private static int roll(int h, byte out, byte in) {
+        return (h - (out & 0xFF) * POW) * 31 + (in & 0xFF);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] data, int[] pos) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= data.length) {
+                throw new IOException("Truncated delta");
+            }
+            int b = data[pos[0]++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed delta");
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Turns the paths given to add and rm into file names relative to the repository root.
+ * A path may name a file, a directory (meaning every file below it) or be a glob such
+ * as "src/*.java" or "docs/**". Directories are listed in parallel, one fork/join task
+ * per directory; the .ankgit folder is never included and symbolic links to
+ * directories are not followed.
+ */
+public class FileWalker {
+
+    private static final String REPO_DIR = ".ankgit";
+
+    private final Path root;
+    private final int threads;
+
+    /**
+     * @param root absolute path of the working directory.
+     * @param threads number of directories listed at once.
+     */
+    public FileWalker(Path root, int threads) {
+        this.root = root;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param path
+     * @return true if path contains glob syntax.
+     */
+    public static boolean isGlob(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the working directory files a path stands for.
+     * @param path a file, directory or glob, relative to the root.
+     * @return matching file names in sorted order, empty if nothing matches.
+     */
+    public List<String> expand(String path) {
+        TreeSet<String> names = new TreeSet<String>();
+        if (isGlob(path)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+            Path start = root.resolve(globPrefix(path)).normalize();
+            if (Files.isDirectory(start, LinkOption.NOFOLLOW_LINKS)) {
+                for (String name : walk(start)) {
+                    if (matcher.matches(FileSystems.getDefault().getPath(name))) {
+                        names.add(name);
+                    }
+                }
+            }
+        } else {
+            Path p = root.resolve(path).normalize();
+            if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                names.addAll(walk(p));
+            } else if (Files.exists(p)) {
+                names.add(path);
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Selects the names a path stands for out of a given collection (e.g. tracked files
+     * that may no longer exist on disk).
+     * @param path a file name, directory or glob, relative to the root.
+     * @param candidates names to choose from.
+     * @return matching names in sorted order.
+     */
+    public static List<String> select(String path, Collection<String> candidates) {
+        TreeSet<String> names = new TreeSet<String>();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        PathMatcher matcher = isGlob(path)
+                ? FileSystems.getDefault().getPathMatcher("glob:" + path) : null;
+        for (String name : candidates) {
+            if (name.equals(path) || name.startsWith(prefix) || path.equals(".")
+                    || (matcher != null && matcher.matches(
+                            FileSystems.getDefault().getPath(name)))) {
+                names.add(name);
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /* The directories of a glob before its first wildcard, e.g. "src/main" for "src/main/*.java". */
+    private static String globPrefix(String glob) {
+        String prefix = "";
+        int from = 0;
+        int slash;
+        while ((slash = glob.indexOf('/', from)) >= 0) {
+            if (isGlob(glob.substring(from, slash))) {
+                break;
+            }
+            prefix = glob.substring(0, slash);
+            from = slash + 1;
+        }
+        return prefix;
+    }
+
+    private List<String> walk(Path dir) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new ListTask(dir));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Lists one directory, forking a task for each subdirectory. */
+    private class ListTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        ListTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<String> compute() {
+            ArrayList<String> files = new ArrayList<String>();
+            ArrayList<ListTask> subdirs = new ArrayList<ListTask>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) {
+                    if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!p.equals(root.resolve(REPO_DIR))) {
+                            ListTask task = new ListTask(p);
+                            task.fork();
+                            subdirs.add(task);
+                        }
+                    } else if (Files.isRegularFile(p)) {
+                        files.add(root.relativize(p).toString());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not list " + root.relativize(dir));
+            }
+            for (ListTask task : subdirs) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+    }
+}
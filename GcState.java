@@ -0,0 +1,169 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashSet;
+
+/**
+ * Progress of a garbage collection that stopped at its time limit, so that the next
+ * gc continues where it stopped instead of walking the history again. gc goes through
+ * these phases, each resumable from the fields below:
+ *
+ *   MARK    marks the commits the branch heads reach; pending holds the commits
+ *           whose ancestors are still to be marked.
+ *   KEEP    with --keep, marks recent unreachable commits too, scanning IDs from cursor.
+ *   REMOVE  deletes the unmarked commits, scanning IDs from cursor up to markedUpTo.
+ *   USED    collects the file versions of the remaining commits, from cursor on.
+ *   SWEEP   deletes loose file versions not in used, from object folder folder on.
+ *
+ * Commits made after marking started have higher IDs than markedUpTo and are never
+ * removed; their file versions are collected before every sweep.
+ */
+public class GcState {
+
+    static final int MARK = 0;
+    static final int KEEP = 1;
+    static final int REMOVE = 2;
+    static final int USED = 3;
+    static final int SWEEP = 4;
+
+    private static final int MAGIC = 0x41474353;
+    private static final int VERSION = 1;
+
+    final long keepMillis;
+    int phase;
+    /* Highest commit ID when marking started. */
+    long markedUpTo;
+    /* Next commit ID to look at in KEEP, REMOVE and USED; in SWEEP, the next commit
+     * whose file versions have not been collected yet. */
+    long cursor;
+    /* Object folder the sweep continues from, or null. */
+    String folder;
+    final BitSet reachable;
+    final ArrayDeque<Long> pending;
+    final HashSet<String> used;
+    /* Commits looked at by this run. */
+    private long steps;
+
+    /**
+     * Starts a new collection.
+     * @param keepMillis age under which unreachable commits and file versions are kept.
+     * @param markedUpTo highest commit ID at the start.
+     */
+    GcState(long keepMillis, long markedUpTo) {
+        this.keepMillis = keepMillis;
+        this.markedUpTo = markedUpTo;
+        phase = MARK;
+        reachable = new BitSet();
+        pending = new ArrayDeque<Long>();
+        used = new HashSet<String>();
+    }
+
+    /**
+     * @param path absolute path of the state file.
+     * @return the stored state, or null if there is none or it cannot be read.
+     */
+    static GcState read(String path) {
+        File f = new File(path);
+        if (!f.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            GcState state = new GcState(in.readLong(), 0);
+            state.phase = in.readInt();
+            state.markedUpTo = in.readLong();
+            state.cursor = in.readLong();
+            state.folder = in.readBoolean() ? in.readUTF() : null;
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            state.reachable.or(BitSet.valueOf(words));
+            int pending = in.readInt();
+            for (int i = 0; i < pending; i++) {
+                state.pending.add(in.readLong());
+            }
+            int used = in.readInt();
+            byte[] raw = new byte[32];
+            for (int i = 0; i < used; i++) {
+                in.readFully(raw);
+                state.used.add(BlobStore.toHex(raw));
+            }
+            return state;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the state through a temporary file, so a crash leaves the old one.
+     * @param path absolute path of the state file.
+     * @throws IOException
+     */
+    void write(String path) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(keepMillis);
+            out.writeInt(phase);
+            out.writeLong(markedUpTo);
+            out.writeLong(cursor);
+            out.writeBoolean(folder != null);
+            if (folder != null) {
+                out.writeUTF(folder);
+            }
+            long[] words = reachable.toLongArray();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+            out.writeInt(pending.size());
+            for (long id : pending) {
+                out.writeLong(id);
+            }
+            out.writeInt(used.size());
+            for (String hash : used) {
+                out.write(BlobStore.fromHex(hash));
+            }
+        }
+        Files.move(tmp, Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Counts one commit looked at, and checks the deadline once every 1024 of them, so 
+     * that every gc makes some progress however short its limit.
+     * @param deadline System.nanoTime() after which the run stops.
+     * @return true if the run should stop.
+     */
+    boolean pastDeadline(long deadline) {
+        steps += 1;
+        return steps % 1024 == 0 && System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * Adds a file version in use. Only blob hashes are kept; nothing else can be swept.
+     * @param hash
+     */
+    void use(String hash) {
+        if (BlobStore.isHash(hash)) {
+            used.add(hash);
+        }
+    }
+}
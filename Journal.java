@@ -0,0 +1,388 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of the changes made to a CommitTree since its last snapshot.
+ * Every mutation of the tree is recorded here as a small record, and only the records
+ * made by the current command are appended to disk when it finishes, so a command that
+ * changes nothing writes nothing. Loading replays the log on top of the snapshot.
+ *
+ * Each record is encoded on its own before it joins the pending ones, so a record that
+ * fails halfway leaves nothing behind. Strings are written as an int length followed by
+ * their UTF-8 bytes, which has no limit on their length.
+ */
+public class Journal {
+
+    /* Records of these three types written before commit IDs were numbers hold 
+     * the IDs as strings; they are still replayed. */
+    private static final byte STRING_ID_COMMIT = 1;
+    private static final byte STRING_ID_BRANCH_HEAD = 2;
+    private static final byte STRING_ID_AMEND = 5;
+    /* Records of types up to 8 hold their strings in writeUTF's format, which cannot 
+     * exceed 64 KB; they are still replayed. */
+    private static final byte UTF_REMOVE_BRANCH = 3;
+    private static final byte UTF_CURRENT_BRANCH = 4;
+    private static final byte UTF_COMMIT = 6;
+    private static final byte UTF_BRANCH_HEAD = 7;
+    private static final byte UTF_AMEND = 8;
+    private static final byte REMOVE_COMMIT = 9;
+    private static final byte COMMIT = 10;
+    private static final byte BRANCH_HEAD = 11;
+    private static final byte REMOVE_BRANCH = 12;
+    private static final byte CURRENT_BRANCH = 13;
+    private static final byte AMEND = 14;
+    private static final byte MESSAGE = 15;
+
+    private final String path;
+    /* Complete records waiting to be written. */
+    private final ByteArrayOutputStream buffer;
+    /* The record being encoded. */
+    private final ByteArrayOutputStream recordBuffer;
+    private final DataOutputStream record;
+    /* Number of records on disk plus the ones waiting to be written. */
+    private int records;
+    private int pendingRecords;
+    /* Length of the complete records on disk when replay found a damaged tail after 
+     * them, or -1. */
+    private long validLength = -1;
+
+    /**
+     * @param path absolute path of the journal file.
+     */
+    public Journal(String path) {
+        this.path = path;
+        buffer = new ByteArrayOutputStream();
+        recordBuffer = new ByteArrayOutputStream();
+        record = new DataOutputStream(recordBuffer);
+    }
+
+    /**
+     * Records a new commit. Only the files that differ from the parent's file list
+     * are written, since replay rebuilds the rest from the parent.
+     * @param c
+     */
+    public void logCommit(Commit c) {
+        try {
+            begin(COMMIT);
+            record.writeLong(c.commitID);
+            record.writeLong(c.parentID);
+            writeString(c.dateCommitted);
+            writeString(c.commitMessage);
+            Commit parent = c.getParent();
+            Manifest parentFiles = parent == null ? Manifest.EMPTY : parent.getFileHistory();
+            HashMap<String, String> changes = Manifest.changes(parentFiles, c.getFileHistory());
+            int removed = 0;
+            for (String hash : changes.values()) {
+                if (hash == null) {
+                    removed += 1;
+                }
+            }
+            record.writeInt(changes.size() - removed);
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                if (entry.getValue() != null) {
+                    writeString(entry.getKey());
+                    writeString(entry.getValue());
+                }
+            }
+            record.writeInt(removed);
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                if (entry.getValue() == null) {
+                    writeString(entry.getKey());
+                }
+            }
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records that a branch now points at the given commit. */
+    public void logBranchHead(String branch, long commitID) {
+        try {
+            begin(BRANCH_HEAD);
+            writeString(branch);
+            record.writeLong(commitID);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records the removal of a branch. */
+    public void logRemoveBranch(String branch) {
+        try {
+            begin(REMOVE_BRANCH);
+            writeString(branch);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records a switch of the current branch. */
+    public void logCurrentBranch(String branch) {
+        try {
+            begin(CURRENT_BRANCH);
+            writeString(branch);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records a changed message of an existing commit (interactive rebase). */
+    public void logMessage(Commit c) {
+        try {
+            begin(MESSAGE);
+            record.writeLong(c.commitID);
+            writeString(c.commitMessage);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records a changed parent of an existing commit (interactive rebase). */
+    public void logAmend(Commit c) {
+        try {
+            begin(AMEND);
+            record.writeLong(c.commitID);
+            record.writeLong(c.parentID);
+            writeString(c.commitMessage);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records the deletion of an unreachable commit by gc. */
+    public void logRemoveCommit(long commitID) {
+        try {
+            begin(REMOVE_COMMIT);
+            record.writeLong(commitID);
+            recorded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Starts encoding a record, dropping whatever an earlier failed one left. */
+    private void begin(byte type) throws IOException {
+        recordBuffer.reset();
+        record.writeByte(type);
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    /* Adds the encoded record to the pending ones. */
+    private void recorded() {
+        buffer.write(recordBuffer.toByteArray(), 0, recordBuffer.size());
+        recordBuffer.reset();
+        records += 1;
+        pendingRecords += 1;
+    }
+
+    /** @return true if records were made that are not on disk yet. */
+    public boolean hasPending() {
+        return pendingRecords > 0;
+    }
+
+    /** @return number of records since the last snapshot, including pending ones. */
+    public int size() {
+        return records;
+    }
+
+    /**
+     * Appends the pending records to the journal file in a single write. A damaged tail 
+     * found by replay is cut off first, so the new records follow the last complete one.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (!hasPending()) {
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(path, "rw")) {
+            if (validLength >= 0) {
+                out.setLength(validLength);
+                validLength = -1;
+            }
+            out.seek(out.length());
+            out.write(buffer.toByteArray());
+            out.getFD().sync();
+        }
+        Trace.wrote(buffer.size());
+        Trace.touched(1);
+        buffer.reset();
+        pendingRecords = 0;
+    }
+
+    /**
+     * Empties the journal after its records have been folded into a new snapshot.
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        new FileOutputStream(path, false).close();
+        buffer.reset();
+        records = 0;
+        pendingRecords = 0;
+        validLength = -1;
+    }
+
+    /**
+     * Applies every record in the journal file to the given tree. The tree must not have
+     * a journal attached yet, or the replayed changes would be recorded a second time.
+     * A record cut short by a crash, or one that cannot be read, ends the replay; 
+     * everything before it is kept, and the next flush cuts the file back to it.
+     * @param tree
+     * @throws IOException
+     */
+    public void replay(CommitTree tree) throws IOException {
+        File f = new File(path);
+        if (!f.exists()) {
+            return;
+        }
+        byte[] data = Files.readAllBytes(f.toPath());
+        Trace.read(data.length);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        long complete = 0;
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    return;
+                }
+                replayRecord(tree, in, type);
+                complete = data.length - bytes.available();
+                records += 1;
+            }
+        } catch (EOFException e) {
+            /* A partially written last record is dropped. */
+            validLength = complete;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Ignoring corrupt journal records after record " + records + ".");
+            validLength = complete;
+        }
+    }
+
+    private void replayRecord(CommitTree tree, DataInputStream in, int type) 
+            throws IOException {
+        boolean stringIDs = type == STRING_ID_COMMIT || type == STRING_ID_BRANCH_HEAD 
+                || type == STRING_ID_AMEND;
+        boolean utf = type <= UTF_AMEND;
+        switch (type) {
+            case COMMIT:
+            case UTF_COMMIT:
+            case STRING_ID_COMMIT:
+                replayCommit(tree, in, stringIDs, utf);
+                break;
+            case BRANCH_HEAD:
+            case UTF_BRANCH_HEAD:
+            case STRING_ID_BRANCH_HEAD:
+                String branch = readString(in, utf);
+                tree.setBranchHead(branch, readID(in, stringIDs));
+                break;
+            case REMOVE_BRANCH:
+            case UTF_REMOVE_BRANCH:
+                tree.removeBranch(readString(in, utf));
+                break;
+            case CURRENT_BRANCH:
+            case UTF_CURRENT_BRANCH:
+                tree.setCurrentBranch(readString(in, utf));
+                break;
+            case AMEND:
+            case UTF_AMEND:
+            case STRING_ID_AMEND:
+                Commit c = tree.getCommitWithID(readID(in, stringIDs));
+                Commit parent = tree.getCommitWithID(readID(in, stringIDs));
+                String message = readString(in, utf);
+                if (c != null) {
+                    tree.setParent(c, parent);
+                    if (!message.equals(c.commitMessage)) {
+                        tree.setCommitMessage(c, message);
+                    }
+                }
+                break;
+            case MESSAGE:
+                Commit amended = tree.getCommitWithID(in.readLong());
+                String newMessage = readString(in, false);
+                if (amended != null) {
+                    tree.setCommitMessage(amended, newMessage);
+                }
+                break;
+            case REMOVE_COMMIT:
+                Commit removed = tree.getCommitWithID(in.readLong());
+                if (removed != null) {
+                    tree.removeCommit(removed);
+                }
+                break;
+            default:
+                throw new IOException("Corrupt journal record type " + type);
+        }
+    }
+
+    /* Reads a string in writeString's format, or writeUTF's for older records. */
+    private static String readString(DataInputStream in, boolean utf) throws IOException {
+        if (utf) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt journal string length " + length);
+        } else if (length > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Reads a commit ID, or -1 for none. */
+    private static long readID(DataInputStream in, boolean stringIDs) throws IOException {
+        if (!stringIDs) {
+            return in.readLong();
+        }
+        String id = in.readUTF();
+        return id.isEmpty() ? -1 : Long.parseLong(id);
+    }
+
+    private void replayCommit(CommitTree tree, DataInputStream in, boolean stringIDs, 
+            boolean utf) throws IOException {
+        long id = readID(in, stringIDs);
+        Commit parent = tree.getCommitWithID(readID(in, stringIDs));
+        String date = readString(in, utf);
+        String message = readString(in, utf);
+        Manifest files = parent == null ? Manifest.EMPTY : parent.getFileHistory();
+        int changed = in.readInt();
+        for (int i = 0; i < changed; i++) {
+            String fileName = readString(in, utf);
+            files = files.with(fileName, readString(in, utf));
+        }
+        int removed = in.readInt();
+        for (int i = 0; i < removed; i++) {
+            files = files.without(readString(in, utf));
+        }
+        Commit existing = tree.getCommitWithID(id);
+        if (existing != null) {
+            /* Already in the snapshot; only the head move still has to happen. */
+            tree.addCommit(existing);
+            return;
+        }
+        tree.addCommit(new Commit(id, message, parent == null ? -1 : parent.commitID, files, date));
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that files larger than the heap can be added, committed, added again after an
+ * edit and checked out, which needs every step to stream them.
+ *
+ * Usage: java LargeFileCheck [-size megabytes] [-heap megabytes]
+ *
+ * In a new temporary directory it generates a random file, which is stored as is, and
+ * a text file, which is stored compressed, each of -size megabytes (96 by default).
+ * Every AnkGit command is run in its own JVM with -Xmx set to -heap megabytes (32 by
+ * default): init, add and commit of both files, an edit in the middle of each, add and
+ * commit again, then checkout of the first versions. The checked out files must hash
+ * as they did when first written. It prints one line per step and exits with status 1
+ * on the first failure.
+ */
+public class LargeFileCheck {
+
+    private static final long SEED = 20141107L;
+    private static final String[] FILES = {"random.bin", "text.txt"};
+
+    private final Path dir;
+    private final int heap;
+
+    private LargeFileCheck(Path dir, int heap) {
+        this.dir = dir;
+        this.heap = heap;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = 96;
+        int heap = 32;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            try {
+                if (args[i].equals("-size")) {
+                    size = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-heap")) {
+                    heap = Integer.parseInt(args[i + 1]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(2);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number: " + args[i + 1]);
+                System.exit(2);
+            }
+        }
+        if (args.length % 2 != 0) {
+            System.out.println("Usage: java LargeFileCheck [-size megabytes] [-heap megabytes]");
+            System.exit(2);
+        }
+        Path dir = Files.createTempDirectory("ankgit-large");
+        boolean passed;
+        try {
+            passed = new LargeFileCheck(dir, heap).run((long) size << 20);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(long size) throws IOException, InterruptedException {
+        Random random = new Random(SEED);
+        writeRandom(dir.resolve(FILES[0]), size, random);
+        writeText(dir.resolve(FILES[1]), size);
+        String[] first = new String[FILES.length];
+        for (int i = 0; i < FILES.length; i++) {
+            first[i] = BlobStore.hash(dir.resolve(FILES[i]));
+        }
+        if (!ankgit("init") || !ankgit("add", FILES) || !ankgit("commit", "first")) {
+            return false;
+        }
+        for (String name : FILES) {
+            try (RandomAccessFile file = new RandomAccessFile(dir.resolve(name).toFile(), "rw")) {
+                file.seek(size / 2);
+                file.write("edited in the middle\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (!ankgit("add", FILES) || !ankgit("commit", "second")) {
+            return false;
+        }
+        for (String name : FILES) {
+            if (!ankgit("checkout", "1", name)) {
+                return false;
+            }
+        }
+        boolean same = true;
+        for (int i = 0; i < FILES.length; i++) {
+            String hash = BlobStore.hash(dir.resolve(FILES[i]));
+            if (!hash.equals(first[i])) {
+                System.out.println(FILES[i] + " checked out as " + hash + ", not " + first[i]);
+                same = false;
+            }
+        }
+        return same;
+    }
+
+    /**
+     * Runs AnkGit with the given arguments in a JVM limited to the heap size, answering
+     * yes to any prompt.
+     * @return true if it exited normally without an error from the JVM.
+     */
+    private boolean ankgit(String command, String... args) throws IOException, InterruptedException {
+        List<String> line = new ArrayList<String>();
+        line.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        line.add("-Xmx" + heap + "m");
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparator);
+            }
+            classPath.append(Paths.get(entry).toAbsolutePath());
+        }
+        line.add("-cp");
+        line.add(classPath.toString());
+        line.add("AnkGit");
+        line.add(command);
+        line.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(line).directory(dir.toFile())
+                .redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write("yes\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // it exited without reading; its status says why
+        }
+        String output;
+        try (InputStream out = process.getInputStream()) {
+            output = new String(out.readAllBytes(), StandardCharsets.UTF_8).trim();
+        }
+        int status = process.waitFor();
+        boolean failed = status != 0 || output.contains("Exception") || output.contains("Error")
+                || output.contains("Could not");
+        System.out.println((failed ? "FAIL " : "ok   ") + String.join(" ", line.subList(4, line.size())));
+        if (failed && !output.isEmpty()) {
+            System.out.println(output);
+        }
+        return !failed;
+    }
+
+    /** Writes size random bytes, which do not compress. */
+    private static void writeRandom(Path file, long size, Random random) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long done = 0; done < size; done += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - done));
+            }
+        }
+    }
+
+    /** Writes size bytes of numbered lines, which compress well. */
+    private static void writeText(Path file, long size) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            long done = 0;
+            for (long line = 0; done < size; line++) {
+                byte[] bytes = ("line " + line + " of a file larger than the heap\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                int length = (int) Math.min(bytes.length, size - done);
+                out.write(bytes, 0, length);
+                done += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Line diffs, used by the diff command and by LineMerge. Lines are compared by
+ * content, line endings included, and handled as offsets into the file's bytes, with
+ * each distinct line numbered so the diff itself only compares ints. Lines the two
+ * files share at their start and end are matched directly, without numbering them;
+ * lines that never occur on the other side are left out; what remains is diffed with
+ * Myers' algorithm in its linear space form (the "middle snake" divide and conquer, as
+ * in git's xdiff). A diff that turns out very expensive settles for a good split rather
+ * than the best one, so time stays well below quadratic even for unrelated files.
+ */
+public class LineDiff {
+
+    /* Files with a NUL byte in this many leading bytes are treated as binary. */
+    private static final int BINARY_CHECK = 8000;
+    private static final int MIN_COST = 256;
+
+    /**
+     * @param content
+     * @return false if content looks binary, so diffing it by line makes no sense.
+     */
+    public static boolean isText(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, BINARY_CHECK); i++) {
+            if (content[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Diffs two files.
+     * @param a
+     * @param b
+     * @return for every line of a, the line of b it is matched with, or -1 if it was
+     * deleted. Matches are increasing.
+     */
+    public static int[] diff(Lines a, Lines b) {
+        int n = a.count();
+        int m = b.count();
+        int[] match = new int[n];
+        Arrays.fill(match, -1);
+        int prefix = 0;
+        while (prefix < n && prefix < m && a.sameLine(prefix, b, prefix)) {
+            match[prefix] = prefix;
+            prefix += 1;
+        }
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix
+                && a.sameLine(n - suffix - 1, b, m - suffix - 1)) {
+            match[n - suffix - 1] = m - suffix - 1;
+            suffix += 1;
+        }
+        if (prefix + suffix == n || prefix + suffix == m) {
+            return match;
+        }
+        Interner interner = new Interner(n + m - 2 * (prefix + suffix));
+        int[] aIds = a.intern(interner, prefix, n - suffix);
+        int[] bIds = b.intern(interner, prefix, m - suffix);
+        int[] middle = diff(aIds, bIds, interner.size());
+        for (int i = 0; i < middle.length; i++) {
+            if (middle[i] >= 0) {
+                match[prefix + i] = prefix + middle[i];
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Diffs two sequences of line ids.
+     * @param a
+     * @param b
+     * @param idCount ids are below this.
+     * @return for every position of a, the position of b it is matched with, or -1
+     * if it was deleted. Matches are increasing.
+     */
+    static int[] diff(int[] a, int[] b, int idCount) {
+        int[] match = new int[a.length];
+        Arrays.fill(match, -1);
+        /* Only lines present on both sides can match; diff just those. */
+        boolean[] inA = new boolean[idCount];
+        boolean[] inB = new boolean[idCount];
+        for (int id : a) {
+            inA[id] = true;
+        }
+        for (int id : b) {
+            inB[id] = true;
+        }
+        int[] aPos = new int[a.length];
+        int[] bPos = new int[b.length];
+        int n = 0;
+        for (int k = 0; k < a.length; k++) {
+            if (inB[a[k]]) {
+                aPos[n++] = k;
+            }
+        }
+        int m = 0;
+        for (int k = 0; k < b.length; k++) {
+            if (inA[b[k]]) {
+                bPos[m++] = k;
+            }
+        }
+        int[] ra = new int[n];
+        int[] rb = new int[m];
+        for (int k = 0; k < n; k++) {
+            ra[k] = a[aPos[k]];
+        }
+        for (int k = 0; k < m; k++) {
+            rb[k] = b[bPos[k]];
+        }
+        int[] reduced = new Myers(ra, rb).run();
+        for (int k = 0; k < n; k++) {
+            if (reduced[k] >= 0) {
+                match[aPos[k]] = bPos[reduced[k]];
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Writes the hunks of a diff in unified format: "@@ -start,count +start,count @@"
+     * headers, then context lines starting with a space, removed lines with "-" and
+     * added lines with "+".
+     * @param a
+     * @param b
+     * @param match as returned by diff(a, b).
+     * @param context number of unchanged lines shown around each change.
+     * @param out
+     * @throws IOException
+     */
+    public static void writeUnified(Lines a, Lines b, int[] match, int context,
+            OutputStream out) throws IOException {
+        /* Each change is {aFrom, aTo, bFrom, bTo}: a[aFrom, aTo) became b[bFrom, bTo). */
+        ArrayList<int[]> changes = new ArrayList<int[]>();
+        int i = 0;
+        int j = 0;
+        while (i < a.count() || j < b.count()) {
+            if (i < a.count() && match[i] == j) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aFrom = i;
+            int bFrom = j;
+            while (i < a.count() && match[i] < 0) {
+                i += 1;
+            }
+            j = i < a.count() ? match[i] : b.count();
+            changes.add(new int[] {aFrom, i, bFrom, j});
+        }
+        int first = 0;
+        while (first < changes.size()) {
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * context) {
+                last += 1;
+            }
+            int[] start = changes.get(first);
+            int[] end = changes.get(last);
+            int aStart = Math.max(0, start[0] - context);
+            int bStart = start[2] - (start[0] - aStart);
+            int aEnd = Math.min(a.count(), end[1] + context);
+            int bEnd = end[3] + (aEnd - end[1]);
+            String header = "@@ -" + range(aStart, aEnd - aStart) + " +"
+                    + range(bStart, bEnd - bStart) + " @@\n";
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            int at = aStart;
+            for (int k = first; k <= last; k++) {
+                int[] change = changes.get(k);
+                writeLines(out, ' ', a, at, change[0]);
+                writeLines(out, '-', a, change[0], change[1]);
+                writeLines(out, '+', b, change[2], change[3]);
+                at = change[1];
+            }
+            writeLines(out, ' ', a, at, aEnd);
+            first = last + 1;
+        }
+    }
+
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeLines(OutputStream out, char prefix, Lines lines, int from, int to)
+            throws IOException {
+        for (int k = from; k < to; k++) {
+            out.write(prefix);
+            int start = lines.starts[k];
+            int end = lines.starts[k + 1];
+            out.write(lines.data, start, end - start);
+            if (lines.data[end - 1] != '\n') {
+                out.write("\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /** Linear space Myers diff, after xdiff's xdl_split and xdl_recs_cmp. */
+    private static class Myers {
+        private final int[] a;
+        private final int[] b;
+        private final int[] match;
+        /* Furthest reaching x per diagonal k = x - y, forward and backward, at k + offset. */
+        private final int[] forward;
+        private final int[] backward;
+        private final int offset;
+        private final int maxCost;
+
+        Myers(int[] a, int[] b) {
+            this.a = a;
+            this.b = b;
+            match = new int[a.length];
+            Arrays.fill(match, -1);
+            offset = b.length + 1;
+            forward = new int[a.length + b.length + 3];
+            backward = new int[a.length + b.length + 3];
+            maxCost = Math.max(MIN_COST, (int) Math.sqrt(a.length + b.length + 3));
+        }
+
+        int[] run() {
+            ArrayDeque<int[]> boxes = new ArrayDeque<int[]>();
+            boxes.push(new int[] {0, a.length, 0, b.length});
+            while (!boxes.isEmpty()) {
+                int[] box = boxes.pop();
+                int off1 = box[0];
+                int lim1 = box[1];
+                int off2 = box[2];
+                int lim2 = box[3];
+                while (off1 < lim1 && off2 < lim2 && a[off1] == b[off2]) {
+                    match[off1++] = off2++;
+                }
+                while (off1 < lim1 && off2 < lim2 && a[lim1 - 1] == b[lim2 - 1]) {
+                    match[--lim1] = --lim2;
+                }
+                if (off1 == lim1 || off2 == lim2) {
+                    continue;
+                }
+                int[] split = split(off1, lim1, off2, lim2);
+                boxes.push(new int[] {split[0], lim1, split[1], lim2});
+                boxes.push(new int[] {off1, split[0], off2, split[1]});
+            }
+            return match;
+        }
+
+        /**
+         * Finds a point the edit path from (off1, off2) to (lim1, lim2) passes through,
+         * searching forward from the start and backward from the end until they meet.
+         * Past maxCost edits it returns the point that got furthest instead.
+         */
+        private int[] split(int off1, int lim1, int off2, int lim2) {
+            int dmin = off1 - lim2;
+            int dmax = lim1 - off2;
+            int fmid = off1 - off2;
+            int bmid = lim1 - lim2;
+            boolean odd = ((fmid - bmid) & 1) != 0;
+            int fmin = fmid;
+            int fmax = fmid;
+            int bmin = bmid;
+            int bmax = bmid;
+            forward[fmid + offset] = off1;
+            backward[bmid + offset] = lim1;
+            for (int cost = 1; ; cost++) {
+                if (fmin > dmin) {
+                    forward[--fmin - 1 + offset] = -1;
+                } else {
+                    ++fmin;
+                }
+                if (fmax < dmax) {
+                    forward[++fmax + 1 + offset] = -1;
+                } else {
+                    --fmax;
+                }
+                for (int d = fmax; d >= fmin; d -= 2) {
+                    int i1 = forward[d - 1 + offset] >= forward[d + 1 + offset]
+                            ? forward[d - 1 + offset] + 1 : forward[d + 1 + offset];
+                    int i2 = i1 - d;
+                    while (i1 < lim1 && i2 < lim2 && a[i1] == b[i2]) {
+                        i1++;
+                        i2++;
+                    }
+                    forward[d + offset] = i1;
+                    if (odd && bmin <= d && d <= bmax && backward[d + offset] <= i1) {
+                        return new int[] {i1, i2};
+                    }
+                }
+                if (bmin > dmin) {
+                    backward[--bmin - 1 + offset] = Integer.MAX_VALUE;
+                } else {
+                    ++bmin;
+                }
+                if (bmax < dmax) {
+                    backward[++bmax + 1 + offset] = Integer.MAX_VALUE;
+                } else {
+                    --bmax;
+                }
+                for (int d = bmax; d >= bmin; d -= 2) {
+                    int i1 = backward[d - 1 + offset] < backward[d + 1 + offset]
+                            ? backward[d - 1 + offset] : backward[d + 1 + offset] - 1;
+                    int i2 = i1 - d;
+                    while (i1 > off1 && i2 > off2 && a[i1 - 1] == b[i2 - 1]) {
+                        i1--;
+                        i2--;
+                    }
+                    backward[d + offset] = i1;
+                    if (!odd && fmin <= d && d <= fmax && i1 <= forward[d + offset]) {
+                        return new int[] {i1, i2};
+                    }
+                }
+                if (cost >= maxCost) {
+                    return furthest(off1, lim1, off2, lim2, fmin, fmax, bmin, bmax);
+                }
+            }
+        }
+
+        private int[] furthest(int off1, int lim1, int off2, int lim2,
+                int fmin, int fmax, int bmin, int bmax) {
+            int fbest = -1;
+            int fbest1 = -1;
+            for (int d = fmax; d >= fmin; d -= 2) {
+                int i1 = Math.min(forward[d + offset], lim1);
+                int i2 = i1 - d;
+                if (lim2 < i2) {
+                    i1 = lim2 + d;
+                    i2 = lim2;
+                }
+                if (fbest < i1 + i2) {
+                    fbest = i1 + i2;
+                    fbest1 = i1;
+                }
+            }
+            int bbest = Integer.MAX_VALUE;
+            int bbest1 = Integer.MAX_VALUE;
+            for (int d = bmax; d >= bmin; d -= 2) {
+                int i1 = Math.max(off1, backward[d + offset]);
+                int i2 = i1 - d;
+                if (i2 < off2) {
+                    i1 = off2 + d;
+                    i2 = off2;
+                }
+                if (i1 + i2 < bbest) {
+                    bbest = i1 + i2;
+                    bbest1 = i1;
+                }
+            }
+            if ((lim1 + lim2) - bbest < fbest - (off1 + off2)) {
+                return new int[] {fbest1, fbest - fbest1};
+            }
+            return new int[] {bbest1, bbest - bbest1};
+        }
+    }
+
+    /** The lines of a file as offsets into it, each including its line terminator. */
+    public static class Lines {
+        final byte[] data;
+        /* starts[i] is where line i begins; starts[count] is data.length. */
+        final int[] starts;
+
+        public Lines(byte[] data) {
+            this.data = data;
+            int count = 0;
+            for (byte c : data) {
+                if (c == '\n') {
+                    count += 1;
+                }
+            }
+            if (data.length > 0 && data[data.length - 1] != '\n') {
+                count += 1;
+            }
+            starts = new int[count + 1];
+            int line = 1;
+            for (int i = 0; i < data.length && line < count; i++) {
+                if (data[i] == '\n') {
+                    starts[line++] = i + 1;
+                }
+            }
+            starts[count] = data.length;
+        }
+
+        public int count() {
+            return starts.length - 1;
+        }
+
+        /** @return the ids of lines [from, to). */
+        int[] intern(Interner interner, int from, int to) {
+            int[] ids = new int[to - from];
+            for (int i = from; i < to; i++) {
+                ids[i - from] = interner.id(this, i);
+            }
+            return ids;
+        }
+
+        void write(ByteArrayOutputStream out, int from, int to) {
+            out.write(data, starts[from], starts[to] - starts[from]);
+        }
+
+        /* Same as write, ending with a newline even if the file does not. */
+        void writeTerminated(ByteArrayOutputStream out, int from, int to) {
+            write(out, from, to);
+            if (to > from && data[starts[to] - 1] != '\n') {
+                out.write('\n');
+            }
+        }
+
+        int hash(int line) {
+            int h = 1;
+            for (int i = starts[line]; i < starts[line + 1]; i++) {
+                h = 31 * h + data[i];
+            }
+            return h;
+        }
+
+        boolean sameLine(int line, Lines other, int otherLine) {
+            return Arrays.equals(data, starts[line], starts[line + 1],
+                    other.data, other.starts[otherLine], other.starts[otherLine + 1]);
+        }
+    }
+
+    /** Numbers distinct lines, remembering one occurrence of each to compare against. */
+    static class Interner {
+        private final int[] slots;
+        private final Lines[] files;
+        private final int[] lines;
+        private int size;
+
+        /**
+         * @param capacity most lines that will be numbered.
+         */
+        Interner(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(4, capacity) * 2) * 2;
+            slots = new int[tableSize];
+            Arrays.fill(slots, -1);
+            files = new Lines[capacity];
+            lines = new int[capacity];
+        }
+
+        int id(Lines file, int line) {
+            int mask = slots.length - 1;
+            int h = file.hash(line) * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (slots[slot] >= 0) {
+                int id = slots[slot];
+                if (files[id].sameLine(lines[id], file, line)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            files[size] = file;
+            lines[size] = line;
+            slots[slot] = size;
+            return size++;
+        }
+
+        /** @return number of distinct lines seen. */
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Three-way merge of text files by line. Both sides are diffed against the base with
+ * LineDiff, and the base is then walked in step with both diffs: where only one
+ * side changed a stretch of base lines that side's version is taken, where both made
+ * the same change it is taken once, and where they differ the stretch becomes a
+ * conflict between markers:
+ *
+ *   <<<<<<< current branch
+ *   the current branch's lines
+ *   =======
+ *   the given branch's lines
+ *   >>>>>>> given branch
+ *
+ * All three versions share one numbering of distinct lines, so memory use is the files
+ * themselves plus a few ints per line.
+ */
+public class LineMerge {
+
+    /** The outcome of a merge. */
+    public static class Result {
+        /** The merged file. */
+        public final byte[] content;
+        /** Number of conflicting regions marked in content. */
+        public final int conflicts;
+
+        Result(byte[] content, int conflicts) {
+            this.content = content;
+            this.conflicts = conflicts;
+        }
+    }
+
+    /**
+     * Merges the changes ours and theirs made to base.
+     * @param base common ancestor version (empty if the file did not exist then).
+     * @param ours current branch's version.
+     * @param theirs given branch's version.
+     * @param oursLabel name written after the opening conflict marker.
+     * @param theirsLabel name written after the closing conflict marker.
+     * @return the merged content and the number of conflicts in it.
+     */
+    public static Result merge(byte[] base, byte[] ours, byte[] theirs,
+            String oursLabel, String theirsLabel) {
+        Side b = new Side(base);
+        Side o = new Side(ours);
+        Side t = new Side(theirs);
+        LineDiff.Interner interner = new LineDiff.Interner(b.count() + o.count() + t.count());
+        b.intern(interner);
+        o.intern(interner);
+        t.intern(interner);
+        int[] toOurs = LineDiff.diff(b.ids, o.ids, interner.size());
+        int[] toTheirs = LineDiff.diff(b.ids, t.ids, interner.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.max(ours.length, theirs.length) + 64);
+        byte[] open = ("<<<<<<< " + oursLabel + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] middle = "=======\n".getBytes(StandardCharsets.UTF_8);
+        byte[] close = (">>>>>>> " + theirsLabel + "\n").getBytes(StandardCharsets.UTF_8);
+        int conflicts = 0;
+        int i = 0;
+        int oi = 0;
+        int ti = 0;
+        while (i < b.count() || oi < o.count() || ti < t.count()) {
+            if (i < b.count() && toOurs[i] == oi && toTheirs[i] == ti) {
+                /* A base line both sides kept, with nothing inserted before it. */
+                b.write(out, i, i + 1);
+                i += 1;
+                oi += 1;
+                ti += 1;
+                continue;
+            }
+            /* The changed stretch runs to the next base line both sides kept. */
+            int end = i;
+            while (end < b.count() && (toOurs[end] < 0 || toTheirs[end] < 0)) {
+                end += 1;
+            }
+            int oEnd = end < b.count() ? toOurs[end] : o.count();
+            int tEnd = end < b.count() ? toTheirs[end] : t.count();
+            if (same(b, i, end, o, oi, oEnd)) {
+                t.write(out, ti, tEnd);
+            } else if (same(b, i, end, t, ti, tEnd) || same(o, oi, oEnd, t, ti, tEnd)) {
+                o.write(out, oi, oEnd);
+            } else {
+                /* Lines both sides agree on at either end stay outside the markers. */
+                int head = 0;
+                while (oi + head < oEnd && ti + head < tEnd
+                        && o.ids[oi + head] == t.ids[ti + head]) {
+                    head += 1;
+                }
+                int tail = 0;
+                while (oEnd - tail > oi + head && tEnd - tail > ti + head
+                        && o.ids[oEnd - tail - 1] == t.ids[tEnd - tail - 1]) {
+                    tail += 1;
+                }
+                o.write(out, oi, oi + head);
+                out.write(open, 0, open.length);
+                o.writeTerminated(out, oi + head, oEnd - tail);
+                out.write(middle, 0, middle.length);
+                t.writeTerminated(out, ti + head, tEnd - tail);
+                out.write(close, 0, close.length);
+                o.write(out, oEnd - tail, oEnd);
+                conflicts += 1;
+            }
+            i = end;
+            oi = oEnd;
+            ti = tEnd;
+        }
+        return new Result(out.toByteArray(), conflicts);
+    }
+
+    private static boolean same(Side x, int xFrom, int xTo, Side y, int yFrom, int yTo) {
+        if (xTo - xFrom != yTo - yFrom) {
+            return false;
+        }
+        for (int k = 0; k < xTo - xFrom; k++) {
+            if (x.ids[xFrom + k] != y.ids[yFrom + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** One of the three versions, with the ids of its lines. */
+    private static class Side extends LineDiff.Lines {
+        int[] ids;
+
+        Side(byte[] data) {
+            super(data);
+        }
+
+        void intern(LineDiff.Interner interner) {
+            ids = intern(interner, 0, count());
+        }
+    }
+}
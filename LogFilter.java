@@ -0,0 +1,111 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Options of log and global-log: "-n LIMIT" shows at most LIMIT commits, and
+ * "--since DATE" / "--until DATE" keep only commits made in that range (both ends
+ * included). A DATE is "yyyy-MM-dd", "yyyy-MM-dd HH:mm" or "yyyy-MM-dd HH:mm:ss";
+ * a bare day means its start for --since and its end for --until. Options may also be
+ * written as --since=DATE.
+ */
+public class LogFilter {
+
+    /* Format of Commit.dateCommitted. */
+    private static final String COMMIT_DATE = "yyyy-MM-dd kk:mm:ss";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private long limit = Long.MAX_VALUE;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private final SimpleDateFormat commitDates = new SimpleDateFormat(COMMIT_DATE);
+
+    /**
+     * @param options the arguments after the command name.
+     * @throws IllegalArgumentException naming the first option that cannot be used.
+     */
+    public LogFilter(List<String> options) {
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            String value = null;
+            int eq = option.indexOf('=');
+            if (option.startsWith("--") && eq > 0) {
+                value = option.substring(eq + 1);
+                option = option.substring(0, eq);
+            } else if (i + 1 < options.size()) {
+                value = options.get(i + 1);
+                i += 1;
+            }
+            if (value == null) {
+                throw new IllegalArgumentException(option + " needs a value.");
+            }
+            switch (option) {
+                case "-n":
+                    try {
+                        limit = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("-n needs a number.");
+                    }
+                    break;
+                case "--since":
+                    since = parseDate(value, false);
+                    break;
+                case "--until":
+                    until = parseDate(value, true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option + ".");
+            }
+        }
+    }
+
+    /** @return the most commits to show. */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param c
+     * @return true if c was made after the --until date and should be skipped.
+     */
+    public boolean isTooNew(Commit c) {
+        return until != Long.MAX_VALUE && time(c) > until;
+    }
+
+    /**
+     * Commits are always made after their parents and get increasing IDs, so once
+     * one is older than --since, so is everything after it in either log order.
+     * @param c
+     * @return true if c was made before the --since date.
+     */
+    public boolean isTooOld(Commit c) {
+        return since != Long.MIN_VALUE && time(c) < since;
+    }
+
+    private long time(Commit c) {
+        try {
+            return commitDates.parse(c.dateCommitted).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    private static long parseDate(String value, boolean endOfDay) {
+        String[] formats = {"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+        for (String format : formats) {
+            SimpleDateFormat f = new SimpleDateFormat(format);
+            f.setLenient(false);
+            try {
+                Date d = f.parse(value.trim());
+                if (format.length() == 10 && endOfDay) {
+                    return d.getTime() + DAY_MILLIS - 1;
+                }
+                return d.getTime();
+            } catch (ParseException e) {
+                continue;
+            }
+        }
+        throw new IllegalArgumentException("Cannot read the date " + value + ".");
+    }
+}
@@ -0,0 +1,689 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map from file names to blob hashes, shared between commits.
+ *
+ * It is a tree with one node per directory, like Git's tree objects. Each directory
+ * is itself a Manifest, whose entries are kept in a hash array mapped trie: file names
+ * map to hashes, and the names of subdirectories, followed by a slash, map to the
+ * Manifest of that directory. "Changing" it with with() or without() returns a new
+ * Manifest that copies only the trie nodes on the path to the changed entry, in every
+ * directory on the way to it, and shares everything else with the original. A commit
+ * touching three files out of a large tree therefore allocates a handful of small nodes
+ * instead of a full copy of its parent's map.
+ *
+ * Every directory also has a Merkle hash: the SHA-256 of its entries in name order,
+ * each a name with a file's hash or a subdirectory's own Merkle hash. It is computed
+ * the first time treeHash() asks for it and kept in the node, so a directory shared
+ * between commits is hashed once, and a changed one only rehashes its own entries.
+ * diff skips directories two manifests share without looking inside, and also those
+ * whose Merkle hashes are both known and equal; it never computes a hash itself, since
+ * that would cost as much as the whole tree. under() cuts out a directory without
+ * visiting its files.
+ *
+ * The Map methods read the tree as a flat map of full paths; put and remove from Map
+ * are unsupported.
+ */
+public final class Manifest extends AbstractMap<String, String> {
+
+    /** Receives the differences found by diff. */
+    public interface DiffHandler {
+        /**
+         * @param fileName
+         * @param oldHash hash in the first manifest, or null if the file is not in it.
+         * @param newHash hash in the second manifest, or null if the file is not in it.
+         */
+        void changed(String fileName, String oldHash, String newHash);
+    }
+
+    public static final Manifest EMPTY = new Manifest(null, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final ThreadLocal<MessageDigest> SHA = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final Node root;
+    /* Number of files in this directory and all below it. */
+    private final int size;
+    /* Merkle hash of this directory, once computed. */
+    private volatile byte[] hash;
+    private transient Set<Map.Entry<String, String>> entrySet;
+
+    private Manifest(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param files
+     * @return a manifest holding the same entries as files.
+     */
+    public static Manifest of(Map<String, String> files) {
+        Manifest m = EMPTY;
+        if (files != null) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                m = m.with(entry.getKey(), entry.getValue());
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @param fileName
+     * @param hash
+     * @return a manifest where fileName maps to hash, sharing all untouched nodes with this one.
+     */
+    public Manifest with(String fileName, String hash) {
+        if (hash == null) {
+            throw new NullPointerException("hash");
+        }
+        int slash = fileName.indexOf('/');
+        if (slash < 0) {
+            return withEntry(fileName, hash);
+        }
+        String key = fileName.substring(0, slash + 1);
+        Manifest child = directory(key);
+        Manifest newChild = (child == null ? EMPTY : child).with(fileName.substring(slash + 1), hash);
+        return newChild == child ? this : withEntry(key, newChild);
+    }
+
+    /**
+     * @param fileName
+     * @return a manifest without fileName, sharing all untouched nodes with this one.
+     */
+    public Manifest without(String fileName) {
+        int slash = fileName.indexOf('/');
+        if (slash < 0) {
+            return withEntry(fileName, null);
+        }
+        String key = fileName.substring(0, slash + 1);
+        Manifest child = directory(key);
+        if (child == null) {
+            return this;
+        }
+        Manifest newChild = child.without(fileName.substring(slash + 1));
+        if (newChild == child) {
+            return this;
+        }
+        return withEntry(key, newChild.size == 0 ? null : newChild);
+    }
+
+    /**
+     * Cuts the files below a directory out of the manifest. Only the directories on the
+     * way to it are visited, and the result shares the directory itself.
+     * @param dir directory path, with or without a trailing slash; "" or "." for all.
+     * @return a manifest of the files below dir, under their full paths.
+     */
+    public Manifest under(String dir) {
+        while (dir.endsWith("/")) {
+            dir = dir.substring(0, dir.length() - 1);
+        }
+        if (dir.isEmpty() || dir.equals(".")) {
+            return this;
+        }
+        String[] parts = dir.split("/", -1);
+        Manifest[] path = new Manifest[parts.length + 1];
+        path[0] = this;
+        for (int i = 0; i < parts.length; i++) {
+            path[i + 1] = path[i].directory(parts[i] + "/");
+            if (path[i + 1] == null) {
+                return EMPTY;
+            }
+        }
+        Manifest result = path[parts.length];
+        for (int i = parts.length - 1; i >= 0; i--) {
+            result = EMPTY.withEntry(parts[i] + "/", result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the Merkle hash of the manifest as a hex string: equal for manifests
+     * with the same files, different otherwise.
+     */
+    public String treeHash() {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : merkleHash()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String fileName = (String) key;
+        Manifest m = this;
+        int start = 0;
+        for (int slash = fileName.indexOf('/'); slash >= 0; slash = fileName.indexOf('/', start)) {
+            m = m.directory(fileName.substring(start, slash + 1));
+            if (m == null) {
+                return null;
+            }
+            start = slash + 1;
+        }
+        Object value = m.entry(fileName.substring(start));
+        return value instanceof String ? (String) value : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new FileIterator(Manifest.this);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Reports every file whose hash differs between two manifests. Subtrees the two
+     * manifests share, and directories whose Merkle hashes are known to be equal, are
+     * skipped without being looked at, so the cost follows the number of changes rather
+     * than the number of files.
+     * @param from
+     * @param to
+     * @param handler
+     */
+    public static void diff(Manifest from, Manifest to, DiffHandler handler) {
+        diffDirectories("", from, to, handler);
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return every file whose hash differs between the manifests, mapped to its hash in
+     * to, or to null if to no longer has it.
+     */
+    public static HashMap<String, String> changes(Manifest from, Manifest to) {
+        final HashMap<String, String> changes = new HashMap<String, String>();
+        diff(from, to, new DiffHandler() {
+            @Override
+            public void changed(String fileName, String oldHash, String newHash) {
+                changes.put(fileName, newHash);
+            }
+        });
+        return changes;
+    }
+
+    /* The entry of this directory under key: a hash, a Manifest, or null. */
+    private Object entry(String key) {
+        return root == null ? null : root.get(key, spread(key), 0);
+    }
+
+    private Manifest directory(String key) {
+        Object value = entry(key);
+        return value instanceof Manifest ? (Manifest) value : null;
+    }
+
+    /**
+     * Sets one entry of this directory, keeping the size up to date.
+     * @param key file name, or directory name followed by a slash.
+     * @param value hash, Manifest of the directory, or null to remove the entry.
+     */
+    private Manifest withEntry(String key, Object value) {
+        Object old = entry(key);
+        if (old == value || (value != null && value.equals(old) && value instanceof String)) {
+            return this;
+        }
+        Node newRoot;
+        if (value == null) {
+            newRoot = root.remove(key, spread(key), 0);
+        } else {
+            newRoot = (root == null ? Node.EMPTY : root).put(key, value, spread(key), 0);
+        }
+        return new Manifest(newRoot, size - count(old) + count(value));
+    }
+
+    private static int count(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        return value instanceof Manifest ? ((Manifest) value).size : 1;
+    }
+
+    /**
+     * Hashes the entries of this directory in name order: for each, the length and bytes
+     * of its name, then a file's hash or a subdirectory's Merkle hash, with its length.
+     * Subdirectories are hashed first, and only if they have not been already.
+     * @return the SHA-256 of the directory.
+     */
+    private byte[] merkleHash() {
+        byte[] h = hash;
+        if (h != null) {
+            return h;
+        }
+        HashMap<String, Object> entries = collect(root);
+        ArrayList<String> keys = new ArrayList<String>(entries.keySet());
+        Collections.sort(keys);
+        ArrayList<byte[]> values = new ArrayList<byte[]>(keys.size());
+        for (String key : keys) {
+            Object value = entries.get(key);
+            values.add(value instanceof Manifest ? ((Manifest) value).merkleHash()
+                    : ((String) value).getBytes(StandardCharsets.UTF_8));
+        }
+        MessageDigest sha = SHA.get();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] name = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            updateLength(sha, name.length);
+            sha.update(name);
+            updateLength(sha, values.get(i).length);
+            sha.update(values.get(i));
+        }
+        h = sha.digest();
+        hash = h;
+        return h;
+    }
+
+    private static void updateLength(MessageDigest sha, int length) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            sha.update((byte) (length >>> shift));
+        }
+    }
+
+    private static void diffDirectories(String prefix, Manifest a, Manifest b,
+            DiffHandler handler) {
+        if (a == b) {
+            return;
+        }
+        /* Only hashes already known are compared; computing them would read every file. */
+        byte[] hashA = a.hash;
+        byte[] hashB = b.hash;
+        if (hashA != null && hashB != null && a.size == b.size && Arrays.equals(hashA, hashB)) {
+            return;
+        }
+        diffNodes(prefix, a.root, b.root, 0, handler);
+    }
+
+    private static void diffNodes(String prefix, Node a, Node b, int shift,
+            DiffHandler handler) {
+        if (a == b) {
+            return;
+        }
+        if (a == null || b == null || a instanceof CollisionNode || b instanceof CollisionNode) {
+            diffMaps(prefix, collect(a), collect(b), handler);
+            return;
+        }
+        int bits = a.bitmap | b.bitmap;
+        while (bits != 0) {
+            int bit = Integer.lowestOneBit(bits);
+            bits &= ~bit;
+            Object[] slotA = a.slot(bit);
+            Object[] slotB = b.slot(bit);
+            if (slotA != null && slotB != null && slotA[0] == null && slotB[0] == null) {
+                diffNodes(prefix, (Node) slotA[1], (Node) slotB[1], shift + BITS, handler);
+            } else if (slotA != null && slotB != null && slotA[0] != null
+                    && slotA[0].equals(slotB[0])) {
+                diffEntry(prefix + slotA[0], slotA[1], slotB[1], handler);
+            } else {
+                diffMaps(prefix, collectSlot(slotA), collectSlot(slotB), handler);
+            }
+        }
+    }
+
+    /* Compares the values of one key: two hashes, or two directories. */
+    private static void diffEntry(String path, Object a, Object b, DiffHandler handler) {
+        if (a instanceof Manifest) {
+            diffDirectories(path, (Manifest) a, (Manifest) b, handler);
+        } else if (!a.equals(b)) {
+            handler.changed(path, (String) a, (String) b);
+        }
+    }
+
+    private static void diffMaps(String prefix, HashMap<String, Object> a,
+            HashMap<String, Object> b, DiffHandler handler) {
+        for (Map.Entry<String, Object> entry : a.entrySet()) {
+            Object other = b.get(entry.getKey());
+            if (other != null) {
+                diffEntry(prefix + entry.getKey(), entry.getValue(), other, handler);
+            } else if (entry.getValue() instanceof Manifest) {
+                diffDirectories(prefix + entry.getKey(), (Manifest) entry.getValue(), EMPTY,
+                        handler);
+            } else {
+                handler.changed(prefix + entry.getKey(), (String) entry.getValue(), null);
+            }
+        }
+        for (Map.Entry<String, Object> entry : b.entrySet()) {
+            if (a.containsKey(entry.getKey())) {
+                continue;
+            } else if (entry.getValue() instanceof Manifest) {
+                diffDirectories(prefix + entry.getKey(), EMPTY, (Manifest) entry.getValue(),
+                        handler);
+            } else {
+                handler.changed(prefix + entry.getKey(), null, (String) entry.getValue());
+            }
+        }
+    }
+
+    private static HashMap<String, Object> collectSlot(Object[] slot) {
+        HashMap<String, Object> out = new HashMap<String, Object>();
+        if (slot == null) {
+            return out;
+        } else if (slot[0] == null) {
+            return collect((Node) slot[1]);
+        }
+        out.put((String) slot[0], slot[1]);
+        return out;
+    }
+
+    private static HashMap<String, Object> collect(Node n) {
+        HashMap<String, Object> out = new HashMap<String, Object>();
+        EntryIterator it = new EntryIterator(n);
+        while (it.hasNext()) {
+            it.next();
+            out.put(it.key, it.value);
+        }
+        return out;
+    }
+
+    /** Mixes String.hashCode, whose low bits vary little between similar paths. */
+    private static int spread(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Trie node holding up to 32 slots selected by 5 bits of the hash. Each slot is a
+     * key/value pair in array, or a null key followed by the child node.
+     */
+    private static class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        Node(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Object[] slot(int bit) {
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            return new Object[] {array[i], array[i + 1]};
+        }
+
+        Object get(String key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).get(key, hash, shift + BITS);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        /* The caller has checked that key does not already map to value. */
+        Node put(String key, Object value, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = value;
+                System.arraycopy(array, i, copy, i + 2, array.length - i);
+                return new Node(bitmap | bit, copy);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            Object replacement;
+            if (k == null) {
+                replacement = ((Node) v).put(key, value, hash, shift + BITS);
+            } else if (key.equals(k)) {
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new Node(bitmap, copy);
+            } else {
+                replacement = pair((String) k, v, spread((String) k),
+                        key, value, hash, shift + BITS);
+            }
+            Object[] copy = array.clone();
+            copy[i] = null;
+            copy[i + 1] = replacement;
+            return new Node(bitmap, copy);
+        }
+
+        /** @return the new node, this if nothing was removed, or null if it is now empty. */
+        Node remove(String key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = ((Node) array[i + 1]).remove(key, hash, shift + BITS);
+                if (child == array[i + 1]) {
+                    return this;
+                } else if (child != null) {
+                    Object[] copy = array.clone();
+                    copy[i + 1] = child;
+                    return new Node(bitmap, copy);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new Node(bitmap & ~bit, copy);
+        }
+
+        private static Node pair(String k1, Object v1, int h1, String k2, Object v2, int h2,
+                int shift) {
+            if (shift >= 32) {
+                return new CollisionNode(new Object[] {k1, v1, k2, v2});
+            }
+            return EMPTY.put(k1, v1, h1, shift).put(k2, v2, h2, shift);
+        }
+    }
+
+    /** Holds the keys whose 32 bit hashes are all equal, once the hash bits run out. */
+    private static final class CollisionNode extends Node {
+        CollisionNode(Object[] array) {
+            super(0, array);
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return array[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Node put(String key, Object value, int hash, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    Object[] copy = array.clone();
+                    copy[i + 1] = value;
+                    return new CollisionNode(copy);
+                }
+            }
+            Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            return new CollisionNode(copy);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    if (array.length == 2) {
+                        return null;
+                    }
+                    Object[] copy = new Object[array.length - 2];
+                    System.arraycopy(array, 0, copy, 0, i);
+                    System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+                    return new CollisionNode(copy);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Walks the trie of one directory depth first with an explicit stack of
+     * (node, position) pairs; key and value hold the entry last returned.
+     */
+    private static final class EntryIterator {
+        private final ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<Integer>();
+        private String nextKey;
+        private Object nextValue;
+        String key;
+        Object value;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodes.push(root);
+                positions.push(0);
+            }
+            advance();
+        }
+
+        private void advance() {
+            nextKey = null;
+            while (!nodes.isEmpty()) {
+                Node n = nodes.peek();
+                int i = positions.pop();
+                if (i >= n.array.length) {
+                    nodes.pop();
+                    continue;
+                }
+                positions.push(i + 2);
+                if (n.array[i] == null) {
+                    nodes.push((Node) n.array[i + 1]);
+                    positions.push(0);
+                } else {
+                    nextKey = (String) n.array[i];
+                    nextValue = n.array[i + 1];
+                    return;
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return nextKey != null;
+        }
+
+        void next() {
+            if (nextKey == null) {
+                throw new NoSuchElementException();
+            }
+            key = nextKey;
+            value = nextValue;
+            advance();
+        }
+    }
+
+    /** Walks the files of every directory, depth first, under their full paths. */
+    private static final class FileIterator implements Iterator<Map.Entry<String, String>> {
+        private final ArrayDeque<EntryIterator> directories = new ArrayDeque<EntryIterator>();
+        private final ArrayDeque<String> prefixes = new ArrayDeque<String>();
+        private Map.Entry<String, String> next;
+
+        FileIterator(Manifest root) {
+            directories.push(new EntryIterator(root.root));
+            prefixes.push("");
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (!directories.isEmpty()) {
+                EntryIterator it = directories.peek();
+                if (!it.hasNext()) {
+                    directories.pop();
+                    prefixes.pop();
+                    continue;
+                }
+                it.next();
+                String path = prefixes.peek() + it.key;
+                if (it.value instanceof Manifest) {
+                    directories.push(new EntryIterator(((Manifest) it.value).root));
+                    prefixes.push(path);
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<String, String>(
+                            path, (String) it.value);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes blobs out to the working directory with a bounded pool of worker threads.
+ * Parent folders are created once up front, small files are handed to the workers in
+ * batches so the per-task overhead does not dominate, and a file that fails is reported
+ * without stopping the others.
+ *
+ * The number of workers comes from the ankgit.threads system property or the
+ * ANKGIT_THREADS environment variable, defaulting to the number of processors.
+ */
+public class Materializer {
+
+    /* Files up to this size are grouped into batches... */
+    private static final long SMALL_FILE = 64 << 10;
+    /* ...of at most this many files. */
+    private static final int BATCH = 128;
+
+    private final BlobStore blobs;
+    private final int threads;
+
+    /**
+     * @param blobs store to read file contents from.
+     * @param threads number of worker threads; 1 writes everything on the calling thread.
+     */
+    public Materializer(BlobStore blobs, int threads) {
+        this.blobs = blobs;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** @return the configured number of worker threads. */
+    public static int defaultParallelism() {
+        String setting = System.getProperty("ankgit.threads");
+        if (setting == null) {
+            setting = System.getenv("ANKGIT_THREADS");
+        }
+        if (setting != null) {
+            try {
+                return Math.max(1, Integer.parseInt(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid thread count: " + setting);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Applies a set of changes to the working directory.
+     * @param root absolute path of the working directory.
+     * @param changes file name to the hash of its new content, or to null to delete it.
+     * @return the files that could not be written or deleted, with their errors; empty
+     * if everything succeeded.
+     */
+    public Map<String, IOException> apply(final Path root, Map<String, String> changes) {
+        final Map<String, IOException> failures =
+                Collections.synchronizedMap(new TreeMap<String, IOException>());
+        LinkedHashSet<Path> folders = new LinkedHashSet<Path>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                Path parent = root.resolve(change.getKey()).getParent();
+                if (parent != null) {
+                    folders.add(parent);
+                }
+            }
+        }
+        for (Path folder : folders) {
+            try {
+                Files.createDirectories(folder);
+            } catch (IOException e) {
+                /* Reported per file when the write fails. */
+                continue;
+            }
+        }
+
+        List<List<Map.Entry<String, String>>> tasks = new ArrayList<List<Map.Entry<String, String>>>();
+        List<Map.Entry<String, String>> batch = new ArrayList<Map.Entry<String, String>>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (isSmall(change.getValue())) {
+                batch.add(change);
+                if (batch.size() == BATCH) {
+                    tasks.add(batch);
+                    batch = new ArrayList<Map.Entry<String, String>>();
+                }
+            } else {
+                tasks.add(Collections.singletonList(change));
+            }
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batch);
+        }
+
+        if (threads == 1 || tasks.size() <= 1) {
+            for (List<Map.Entry<String, String>> task : tasks) {
+                run(root, task, failures);
+            }
+            return failures;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            for (final List<Map.Entry<String, String>> task : tasks) {
+                pending.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Materializer.this.run(root, task, failures);
+                    }
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    private boolean isSmall(String hash) {
+        if (hash == null) {
+            return true;
+        }
+        try {
+            return blobs.size(hash) <= SMALL_FILE;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void run(Path root, List<Map.Entry<String, String>> task,
+            Map<String, IOException> failures) {
+        for (Map.Entry<String, String> change : task) {
+            Path target = root.resolve(change.getKey());
+            try {
+                if (change.getValue() == null) {
+                    Files.deleteIfExists(target);
+                    Trace.touched(1);
+                } else {
+                    blobs.copyTo(change.getValue(), target);
+                }
+            } catch (IOException e) {
+                failures.put(change.getKey(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,860 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over commit messages, used by find to search by word, substring or
+ * regular expression without reading every message. Two kinds of terms are indexed:
+ * the lower-cased words of each message, and every run of three characters (trigram)
+ * in it. A substring query looks up the trigrams it contains, a regular expression the
+ * trigrams of the literal text it cannot match without, and the commits in all of
+ * those postings lists are the only ones whose messages are then checked.
+ *
+ * File (".ankgit/msgindex"): "AMIX" version, highest commit ID indexed, term count,
+ * table offset; then the postings lists, each the ascending commit IDs of one term as
+ * varint deltas; then the table of (64 bit term hash, postings offset, count) sorted by
+ * hash. The file is memory-mapped and only the lists a query needs are read. Terms are
+ * stored by hash alone; a collision only adds candidates, which are checked anyway.
+ *
+ * New commits are not added to the file one at a time: a search checks the messages of
+ * commits newer than the file directly, and once there are more than MERGE_THRESHOLD
+ * of them they are merged into a new file. Commits whose message was changed (by
+ * interactive rebase) are listed in ".ankgit/msgindex.amended" and treated the same
+ * way, so their old postings never hide them.
+ */
+public class MessageIndex {
+
+    private static final byte[] MAGIC = {'A', 'M', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER = 28;
+    private static final int ENTRY = 20;
+    private static final int GRAM = 3;
+    /* Commits a search checks one by one before it merges them into the file. */
+    private static final int MERGE_THRESHOLD = 1000;
+    /* Commits added to the file per pass, which bounds the memory a merge takes. */
+    private static final int MERGE_BATCH = 100000;
+
+    private final String path;
+    private final String amendedPath;
+    private final ArrayList<Long> pendingAmends = new ArrayList<Long>();
+
+    /**
+     * @param path absolute path of the index file.
+     */
+    public MessageIndex(String path) {
+        this.path = path;
+        this.amendedPath = path + ".amended";
+    }
+
+    /** Notes that the message of a commit changed, to be saved by save(). */
+    public void amended(Commit c) {
+        pendingAmends.add(c.commitID);
+    }
+
+    /**
+     * Notes that a commit was deleted, to be saved by save(). Like an amended commit
+     * it is skipped by searches and its postings are dropped by the next merge.
+     */
+    public void removed(long commitID) {
+        pendingAmends.add(commitID);
+    }
+
+    /**
+     * Appends the commits noted by amended() to the list of amended commits.
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (pendingAmends.isEmpty()) {
+            return;
+        }
+        FileOutputStream file = new FileOutputStream(amendedPath, true);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (long id : pendingAmends) {
+                out.writeLong(id);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        pendingAmends.clear();
+    }
+
+    /**
+     * Finds the commits whose messages satisfy every part of a query.
+     * @param tree
+     * @param query
+     * @return matching commit IDs in ascending order.
+     * @throws IOException
+     */
+    public List<Long> search(CommitTree tree, Query query) throws IOException {
+        HashSet<Long> amended = readAmended();
+        amended.addAll(pendingAmends);
+        Reader index = Reader.open(path);
+        long indexedThrough = index == null ? -1 : index.indexedThrough;
+        if (tree.lastcommitID - indexedThrough + amended.size() > MERGE_THRESHOLD) {
+            if (index != null) {
+                index.close();
+            }
+            update(tree, amended);
+            amended.clear();
+            index = Reader.open(path);
+            indexedThrough = index == null ? -1 : index.indexedThrough;
+        }
+        ArrayList<Long> result = new ArrayList<Long>();
+        long[] terms = query.terms();
+        if (index == null || terms.length == 0) {
+            if (index != null) {
+                index.close();
+            }
+            for (Commit c : tree.getAllCommits()) {
+                if (query.matches(c.commitMessage)) {
+                    result.add(c.commitID);
+                }
+            }
+            return result;
+        }
+        long[] candidates;
+        try {
+            candidates = index.intersect(terms);
+        } finally {
+            index.close();
+        }
+        HashSet<Long> extra = new HashSet<Long>(amended);
+        for (long id = indexedThrough + 1; id <= tree.lastcommitID; id++) {
+            extra.add(id);
+        }
+        long[] unindexed = new long[extra.size()];
+        int n = 0;
+        for (long id : extra) {
+            unindexed[n++] = id;
+        }
+        Arrays.sort(unindexed);
+        for (long id : union(candidates, unindexed)) {
+            Commit c = tree.getCommitWithID(id);
+            if (c != null && query.matches(c.commitMessage)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings the index file up to date with the tree: commits newer than the file and
+     * amended commits are merged in, MERGE_BATCH at a time, and the amended list is
+     * emptied.
+     */
+    private void update(CommitTree tree, Set<Long> amended) throws IOException {
+        HashSet<Long> reindex = new HashSet<Long>(amended);
+        while (true) {
+            Reader old = Reader.open(path);
+            long from = old == null ? -1 : old.indexedThrough;
+            if (from >= tree.lastcommitID && reindex.isEmpty()) {
+                if (old != null) {
+                    old.close();
+                }
+                break;
+            }
+            long to = Math.min(tree.lastcommitID, from + MERGE_BATCH);
+            try {
+                merge(tree, old, from, to, reindex);
+            } finally {
+                if (old != null) {
+                    old.close();
+                }
+            }
+            reindex.clear();
+        }
+        pendingAmends.clear();
+        Files.deleteIfExists(Paths.get(amendedPath));
+    }
+
+    /**
+     * Writes a new index file holding the old one's postings, without the commits in
+     * reindex, plus the current messages of the commits in reindex and of those with
+     * IDs in (from, to].
+     */
+    private void merge(CommitTree tree, Reader old, long from, long to, Set<Long> reindex)
+            throws IOException {
+        Postings fresh = new Postings();
+        for (long id : reindex) {
+            if (id <= from) {
+                addTerms(fresh, tree.getCommitWithID(id));
+            }
+        }
+        for (long id = from + 1; id <= to; id++) {
+            addTerms(fresh, tree.getCommitWithID(id));
+        }
+        long[] freshTerms = fresh.sortedTerms();
+
+        String tmp = path + ".tmp";
+        FileOutputStream file = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.write(new byte[HEADER]);
+            long position = HEADER;
+            ByteBuffer table = ByteBuffer.allocate(ENTRY * (fresh.size() + (old == null ? 0 : old.termCount)));
+            int oldIndex = 0;
+            int freshIndex = 0;
+            int oldCount = old == null ? 0 : old.termCount;
+            int written = 0;
+            Encoder encoder = new Encoder();
+            while (oldIndex < oldCount || freshIndex < freshTerms.length) {
+                long start = position;
+                long term;
+                int count;
+                if (freshIndex >= freshTerms.length
+                        || (oldIndex < oldCount && old.termAt(oldIndex) < freshTerms[freshIndex])) {
+                    term = old.termAt(oldIndex);
+                    if (reindex.isEmpty()) {
+                        count = old.countAt(oldIndex);
+                        position += old.copyPostings(oldIndex++, out);
+                    } else {
+                        count = encoder.encode(without(old.postingsAt(oldIndex++), reindex), 0);
+                        position += encoder.writeTo(out);
+                    }
+                } else if (oldIndex >= oldCount || freshTerms[freshIndex] < old.termAt(oldIndex)) {
+                    term = freshTerms[freshIndex];
+                    count = encoder.encode(fresh.get(freshTerms[freshIndex++]).sorted(), 0);
+                    position += encoder.writeTo(out);
+                } else if (reindex.isEmpty()) {
+                    /* Every new ID is above every old one, so the old list is kept as it
+                     * is and the new IDs continue its deltas. */
+                    term = freshTerms[freshIndex];
+                    count = old.countAt(oldIndex)
+                            + encoder.encode(fresh.get(freshTerms[freshIndex++]).sorted(), old.lastAt(oldIndex));
+                    position += old.copyPostings(oldIndex++, out);
+                    position += encoder.writeTo(out);
+                } else {
+                    term = freshTerms[freshIndex];
+                    count = encoder.encode(union(without(old.postingsAt(oldIndex++), reindex),
+                            fresh.get(freshTerms[freshIndex++]).sorted()), 0);
+                    position += encoder.writeTo(out);
+                }
+                if (count == 0) {
+                    continue;
+                }
+                table.putLong(term).putLong(start).putInt(count);
+                written += 1;
+            }
+            out.write(table.array(), 0, written * ENTRY);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.put(MAGIC).putInt(VERSION).putLong(to).putInt(written).putLong(position);
+            header.flip();
+            file.getChannel().write(header, 0);
+            file.getFD().sync();
+        }
+        Files.move(Paths.get(tmp), Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addTerms(Postings postings, Commit c) {
+        if (c == null) {
+            return;
+        }
+        for (long term : termsOf(c.commitMessage)) {
+            postings.get(term).add(c.commitID);
+        }
+    }
+
+    /** @return the distinct word and trigram terms of a message. */
+    private static long[] termsOf(String message) {
+        long[] terms = new long[2 * message.length()];
+        int n = 0;
+        int start = -1;
+        boolean ascii = true;
+        for (int i = 0; i <= message.length(); i++) {
+            char ch = i < message.length() ? message.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(ch)) {
+                if (start < 0) {
+                    start = i;
+                    ascii = true;
+                }
+                ascii &= ch < 0x80;
+            } else if (start >= 0) {
+                terms[n++] = ascii ? asciiWordTerm(message, start, i)
+                        : wordTerm(message.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        for (int i = 0; i + GRAM <= message.length(); i++) {
+            terms[n++] = term('g', message, i, i + GRAM);
+        }
+        Arrays.sort(terms, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || terms[i] != terms[i - 1]) {
+                terms[distinct++] = terms[i];
+            }
+        }
+        return Arrays.copyOf(terms, distinct);
+    }
+
+    private static long wordTerm(String word) {
+        return term('w', word, 0, word.length());
+    }
+
+    /* Same as wordTerm of the lower-cased text[from, to), without making the string. */
+    private static long asciiWordTerm(String text, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ 'w') * 0x100000001b3L;
+        for (int i = from; i < to; i++) {
+            char ch = text.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+            h = (h ^ ch) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** @return the lower-cased runs of letters and digits in text. */
+    static List<String> words(String text) {
+        ArrayList<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /* 64 bit FNV-1a hash of a term's kind and text[from, to). */
+    private static long term(char kind, String text, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ kind) * 0x100000001b3L;
+        for (int i = from; i < to; i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private HashSet<Long> readAmended() throws IOException {
+        HashSet<Long> ids = new HashSet<Long>();
+        File f = new File(amendedPath);
+        if (!f.exists()) {
+            return ids;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                ids.add(in.readLong());
+            }
+        } catch (EOFException e) {
+            return ids;
+        }
+    }
+
+    private static long[] without(long[] ids, Set<Long> removed) {
+        if (removed.isEmpty()) {
+            return ids;
+        }
+        LongList kept = new LongList();
+        for (long id : ids) {
+            if (!removed.contains(id)) {
+                kept.add(id);
+            }
+        }
+        return kept.sorted();
+    }
+
+    /** Merges two ascending arrays, dropping duplicates. */
+    private static long[] union(long[] a, long[] b) {
+        long[] out = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            out[n++] = next;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** Turns an ascending list of IDs into varint deltas. */
+    private static class Encoder {
+        private byte[] bytes = new byte[1 << 10];
+        private int length;
+
+        /**
+         * @param ids
+         * @param previous the ID before the first of ids, or 0.
+         * @return number of IDs encoded.
+         */
+        int encode(long[] ids, long previous) {
+            length = 0;
+            for (long id : ids) {
+                if (length + 10 > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                long value = id - previous;
+                previous = id;
+                while ((value & ~0x7FL) != 0) {
+                    bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                bytes[length++] = (byte) value;
+            }
+            return ids.length;
+        }
+
+        /** @return number of bytes written. */
+        int writeTo(DataOutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+            return length;
+        }
+    }
+
+    /** Growable array of commit IDs. */
+    private static class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] sorted() {
+            long[] out = Arrays.copyOf(values, size);
+            Arrays.sort(out);
+            return out;
+        }
+    }
+
+    /** Postings lists kept in memory while a merge collects them, by term hash. */
+    private static class Postings {
+        private long[] terms = new long[1 << 12];
+        private LongList[] lists = new LongList[terms.length];
+        private int size;
+
+        /** @return the list of a term, adding an empty one if there is none. */
+        LongList get(long term) {
+            int slot = slot(terms, lists, term);
+            if (lists[slot] == null) {
+                if (2 * (size + 1) > terms.length) {
+                    grow();
+                    slot = slot(terms, lists, term);
+                }
+                terms[slot] = term;
+                lists[slot] = new LongList();
+                size += 1;
+            }
+            return lists[slot];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] sortedTerms() {
+            long[] out = new long[size];
+            int n = 0;
+            for (int i = 0; i < lists.length; i++) {
+                if (lists[i] != null) {
+                    out[n++] = terms[i];
+                }
+            }
+            Arrays.sort(out);
+            return out;
+        }
+
+        private void grow() {
+            long[] oldTerms = terms;
+            LongList[] oldLists = lists;
+            terms = new long[oldTerms.length * 2];
+            lists = new LongList[terms.length];
+            for (int i = 0; i < oldLists.length; i++) {
+                if (oldLists[i] != null) {
+                    int slot = slot(terms, lists, oldTerms[i]);
+                    terms[slot] = oldTerms[i];
+                    lists[slot] = oldLists[i];
+                }
+            }
+        }
+
+        /* Linear probing, starting from the high bits of a multiplicative hash. */
+        private static int slot(long[] terms, LongList[] lists, long term) {
+            int mask = terms.length - 1;
+            int slot = (int) ((term * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (lists[slot] != null && terms[slot] != term) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /** Read access to an index file through a memory map. */
+    private static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private final long indexedThrough;
+        private final int termCount;
+        private final int tableOffset;
+
+        private Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (map.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a message index");
+                }
+            }
+            if (map.getInt(4) != VERSION) {
+                throw new IOException("Unsupported message index version");
+            }
+            indexedThrough = map.getLong(8);
+            termCount = map.getInt(16);
+            tableOffset = (int) map.getLong(20);
+        }
+
+        /** @return the index at path, or null if there is none or it cannot be read. */
+        static Reader open(String path) {
+            if (!new File(path).exists()) {
+                return null;
+            }
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+                return new Reader(channel);
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        return null;
+                    }
+                }
+                return null;
+            }
+        }
+
+        long termAt(int i) {
+            return map.getLong(tableOffset + i * ENTRY);
+        }
+
+        int countAt(int i) {
+            return map.getInt(tableOffset + i * ENTRY + 16);
+        }
+
+        private int offsetAt(int i) {
+            return i < termCount ? (int) map.getLong(tableOffset + i * ENTRY + 8) : tableOffset;
+        }
+
+        /** @return the last ID in the postings of entry i. */
+        long lastAt(int i) {
+            long last = 0;
+            long value = 0;
+            int shift = 0;
+            for (int at = offsetAt(i), end = offsetAt(i + 1); at < end; at++) {
+                int b = map.get(at) & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0) {
+                    last += value;
+                    value = 0;
+                    shift = 0;
+                }
+            }
+            return last;
+        }
+
+        /**
+         * Copies the encoded postings of entry i, which lie between its offset and the
+         * next entry's, as lists are written in table order.
+         * @return number of bytes copied.
+         */
+        int copyPostings(int i, DataOutputStream out) throws IOException {
+            int start = offsetAt(i);
+            int length = offsetAt(i + 1) - start;
+            byte[] bytes = new byte[length];
+            map.get(start, bytes);
+            out.write(bytes);
+            return length;
+        }
+
+        long[] postingsAt(int i) {
+            int base = tableOffset + i * ENTRY;
+            int offset = (int) map.getLong(base + 8);
+            long[] ids = new long[map.getInt(base + 16)];
+            long last = 0;
+            for (int k = 0; k < ids.length; k++) {
+                long value = 0;
+                for (int shift = 0; ; shift += 7) {
+                    int b = map.get(offset++) & 0xFF;
+                    value |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                last += value;
+                ids[k] = last;
+            }
+            return ids;
+        }
+
+        /** @return position of term in the table, or -1. */
+        int find(long term) {
+            int lo = 0;
+            int hi = termCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long t = termAt(mid);
+                if (t < term) {
+                    lo = mid + 1;
+                } else if (t > term) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /** @return IDs present in the postings of every term, ascending. */
+        long[] intersect(long[] terms) {
+            long[][] lists = new long[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                int at = find(terms[i]);
+                if (at < 0) {
+                    return new long[0];
+                }
+                lists[i] = new long[] {at,map.getInt(tableOffset + at * ENTRY + 16)};
+            }
+            /* Decode the shortest list first and filter it through the others. */
+            Arrays.sort(lists, (a, b) -> Long.compare(a[1], b[1]));
+            long[] result = postingsAt((int) lists[0][0]);
+            for (int i = 1; i < lists.length && result.length > 0; i++) {
+                result = intersect(result, postingsAt((int) lists[i][0]));
+            }
+            return result;
+        }
+
+        private static long[] intersect(long[] a, long[] b) {
+            long[] out = new long[Math.min(a.length, b.length)];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (b[j] < a[i]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The conditions of a find command, all of which a message must meet.
+     */
+    public static class Query {
+        private final ArrayList<String> words = new ArrayList<String>();
+        private final ArrayList<String> substrings = new ArrayList<String>();
+        private final ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        /* Literal text some part of every match of the patterns must contain. */
+        private final ArrayList<String> literals = new ArrayList<String>();
+
+        /** Requires every word of text to appear as a word of the message, in any case. */
+        public void addWords(String text) {
+            words.addAll(words(text));
+        }
+
+        /** Requires the message to contain text exactly. */
+        public void addSubstring(String text) {
+            substrings.add(text);
+        }
+
+        /**
+         * Requires the message to contain a match of a regular expression.
+         * @param regex
+         * @throws java.util.regex.PatternSyntaxException if regex is not valid.
+         */
+        public void addRegex(String regex) {
+            patterns.add(Pattern.compile(regex));
+            literals.addAll(requiredLiterals(regex));
+        }
+
+        /** @return true if nothing was asked for. */
+        public boolean isEmpty() {
+            return words.isEmpty() && substrings.isEmpty() && patterns.isEmpty();
+        }
+
+        boolean matches(String message) {
+            for (String s : substrings) {
+                if (!message.contains(s)) {
+                    return false;
+                }
+            }
+            if (!words.isEmpty() && !new HashSet<String>(words(message)).containsAll(words)) {
+                return false;
+            }
+            for (Pattern p : patterns) {
+                if (!p.matcher(message).find()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return hashes of the terms every matching message has. */
+        long[] terms() {
+            HashSet<Long> terms = new HashSet<Long>();
+            for (String word : words) {
+                terms.add(wordTerm(word));
+            }
+            ArrayList<String> texts = new ArrayList<String>(substrings);
+            texts.addAll(literals);
+            for (String text : texts) {
+                for (int i = 0; i + GRAM <= text.length(); i++) {
+                    terms.add(term('g', text, i, i + GRAM));
+                }
+            }
+            long[] out = new long[terms.size()];
+            int n = 0;
+            for (long t : terms) {
+                out[n++] = t;
+            }
+            return out;
+        }
+
+        /**
+         * Finds runs of literal characters that every match of regex contains: text
+         * outside groups and character classes that no quantifier makes optional.
+         * Anything this simple scan cannot be sure of (alternation, inline flags,
+         * quoting, escapes with arguments) yields no literals, so the search falls back
+         * to checking every message.
+         */
+        static List<String> requiredLiterals(String regex) {
+            ArrayList<String> out = new ArrayList<String>();
+            if (regex.contains("(?") || regex.indexOf('|') >= 0) {
+                return new ArrayList<String>();
+            }
+            StringBuilder run = new StringBuilder();
+            int depth = 0;
+            for (int i = 0; i < regex.length(); i++) {
+                char ch = regex.charAt(i);
+                switch (ch) {
+                    case '\\':
+                        if (i + 1 >= regex.length()) {
+                            return new ArrayList<String>();
+                        }
+                        char next = regex.charAt(++i);
+                        if (!Character.isLetterOrDigit(next)) {
+                            if (depth == 0) {
+                                run.append(next);
+                            }
+                        } else if ("dDsSwWbBAzZGRhHvV".indexOf(next) >= 0) {
+                            flush(run, out);
+                        } else {
+                            return new ArrayList<String>();
+                        }
+                        break;
+                    case '(':
+                        flush(run, out);
+                        depth += 1;
+                        break;
+                    case ')':
+                        flush(run, out);
+                        depth -= 1;
+                        break;
+                    case '[':
+                        flush(run, out);
+                        i += 1;
+                        if (i < regex.length() && regex.charAt(i) == '^') {
+                            i += 1;
+                        }
+                        if (i < regex.length() && regex.charAt(i) == ']') {
+                            i += 1;
+                        }
+                        while (i < regex.length() && regex.charAt(i) != ']') {
+                            if (regex.charAt(i) == '\\') {
+                                i += 1;
+                            } else if (regex.charAt(i) == '[') {
+                                return new ArrayList<String>();
+                            }
+                            i += 1;
+                        }
+                        break;
+                    case '*':
+                    case '?':
+                    case '{':
+                        if (run.length() > 0) {
+                            run.setLength(run.length() - 1);
+                        }
+                        flush(run, out);
+                        if (ch == '{') {
+                            while (i < regex.length() && regex.charAt(i) != '}') {
+                                i += 1;
+                            }
+                        }
+                        break;
+                    case '+':
+                    case '.':
+                    case '^':
+                    case '$':
+                        flush(run, out);
+                        break;
+                    default:
+                        if (depth == 0) {
+                            run.append(ch);
+                        }
+                }
+            }
+            flush(run, out);
+            return out;
+        }
+
+        private static void flush(StringBuilder run, Collection<String> out) {
+            if (run.length() >= GRAM) {
+                out.add(run.toString());
+            }
+            run.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,482 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pack of blobs in a single file, with a sorted index next to it for lookups.
+ *
+ * Pack:  "APCK" version count, then per object:
+ *        type (FULL, DEFLATED or DELTA), content length, [base hash,] payload length, payload
+ * Index: "APIX" version count, then (32 byte hash, 8 byte pack offset) sorted by hash
+ *
+ * A DEFLATED payload is the content compressed with Deflate, used for whole objects
+ * up to MAX_DEFLATED that it makes at least a sixteenth smaller. A DELTA payload is a
+ * Delta against another object of the same pack. The index is
+ * memory-mapped and binary searched. The pack is mapped in windows of WINDOW bytes,
+ * each the first time an object in it is read and then kept while the pack is open;
+ * objects that do not fit in one window are mapped on their own. Mapping only makes
+ * pages readable, so reading an object from a pack never reads the rest of it.
+ */
+public class PackFile implements Closeable {
+
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    private static final byte DEFLATED = 3;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final int INDEX_RECORD = 40;
+    /* Full objects are streamed out of the pack through windows of this size. */
+    private static final int WINDOW = 1 << 26;
+    /* Windows reach this far into the next one, so that no record header is split. */
+    private static final int OVERLAP = 1 << 20;
+    /* Larger objects are stored FULL, as they would have to be compressed in memory. */
+    private static final long MAX_DEFLATED = 16L << 20;
+
+    private final Path packPath;
+    private final Path indexPath;
+    private final FileChannel pack;
+    private final long packSize;
+    /* Window i maps the pack from i * WINDOW; null until first used. */
+    private final MappedByteBuffer[] windows;
+    private final MappedByteBuffer index;
+    private final int count;
+
+    /**
+     * Opens an existing pack and maps its index.
+     * @param packPath
+     * @param indexPath
+     * @throws IOException
+     */
+    public PackFile(Path packPath, Path indexPath) throws IOException {
+        this.packPath = packPath;
+        this.indexPath = indexPath;
+        pack = FileChannel.open(packPath, StandardOpenOption.READ);
+        packSize = pack.size();
+        windows = new MappedByteBuffer[(int) ((packSize + WINDOW - 1) / WINDOW)];
+        try (FileChannel idx = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size());
+        }
+        if (index.getInt(0) != 0x41504958 || index.getInt(4) != VERSION) {
+            throw new IOException(indexPath + " is not a pack index");
+        }
+        count = index.getInt(8);
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    /** @return number of objects in the pack. */
+    public int size() {
+        return count;
+    }
+
+    /** @return hashes of all objects in the pack. */
+    public ArrayList<String> hashes() {
+        ArrayList<String> out = new ArrayList<String>(count);
+        byte[] raw = new byte[32];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < raw.length; j++) {
+                raw[j] = index.get(HEADER + i * INDEX_RECORD + j);
+            }
+            out.add(toHex(raw));
+        }
+        return out;
+    }
+
+    /**
+     * @param hash
+     * @return true if the pack holds the object.
+     */
+    public boolean contains(String hash) {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * @param hash
+     * @return content length of the object, or -1 if it is not in this pack.
+     * @throws IOException
+     */
+    public long contentLength(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            return -1;
+        }
+        return read(offset, 9).getLong(1);
+    }
+
+    /**
+     * @param hash
+     * @return true if the object is stored as a delta.
+     * @throws IOException
+     */
+    public boolean isDelta(String hash) throws IOException {
+        long offset = find(hash);
+        return offset >= 0 && read(offset, 1).get(0) == DELTA;
+    }
+
+    /**
+     * Opens an object for reading. Full objects are streamed from the mapped pack;
+     * deltas are rebuilt in memory from their chain of bases.
+     * @param hash
+     * @return stream over the content, or null if the object is not in this pack.
+     * @throws IOException
+     */
+    public InputStream open(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer header = read(offset, 17);
+        if (header.get(0) == FULL) {
+            return stream(offset + 17, header.getLong(9));
+        } else if (header.get(0) == DEFLATED) {
+            return BlobStore.inflating(stream(offset + 17, header.getLong(9)));
+        }
+        return new ByteArrayInputStream(readBytes(offset));
+    }
+
+    /** Rebuilds the content at offset, following delta bases iteratively. */
+    private byte[] readBytes(long offset) throws IOException {
+        ArrayList<byte[]> deltas = new ArrayList<byte[]>();
+        while (true) {
+            byte type = read(offset, 1).get(0);
+            if (type == FULL || type == DEFLATED) {
+                long length = read(offset + 9, 8).getLong(0);
+                byte[] content = toArray(read(offset + 17, (int) length));
+                if (type == DEFLATED) {
+                    content = inflate(content, read(offset, 9).getLong(1));
+                }
+                for (int i = deltas.size() - 1; i >= 0; i--) {
+                    content = Delta.apply(content, deltas.get(i));
+                }
+                return content;
+            }
+            byte[] base = new byte[32];
+            read(offset + 9, 32).get(base);
+            long length = read(offset + 41, 8).getLong(0);
+            deltas.add(toArray(read(offset + 49, (int) length)));
+            offset = find(toHex(base));
+            if (offset < 0) {
+                throw new IOException("Missing delta base in " + packPath);
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] payload, long length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            byte[] content = new byte[(int) length];
+            int n = 0;
+            while (n < content.length && !inflater.finished()) {
+                int got = inflater.inflate(content, n, content.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += got;
+            }
+            if (n != content.length) {
+                throw new IOException("Corrupt compressed object");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed object", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /* Streams a region of the pack from its window, or through windows of its own. */
+    private InputStream stream(long offset, long length) throws IOException {
+        if (inWindow(offset, length)) {
+            return new MappedInputStream(read(offset, (int) length));
+        }
+        return new MappedInputStream(pack, offset, length);
+    }
+
+    /** @return the region of the pack, as a slice of its window when it fits in one. */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (!inWindow(offset, length)) {
+            return pack.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        int i = (int) (offset / WINDOW);
+        return window(i).slice((int) (offset - (long) i * WINDOW), length);
+    }
+
+    private boolean inWindow(long offset, long length) {
+        long end = (offset / WINDOW) * WINDOW + WINDOW + OVERLAP;
+        return offset + length <= Math.min(end, packSize);
+    }
+
+    private synchronized MappedByteBuffer window(int i) throws IOException {
+        if (windows[i] == null) {
+            long start = (long) i * WINDOW;
+            windows[i] = pack.map(FileChannel.MapMode.READ_ONLY, start, 
+                    Math.min(packSize - start, WINDOW + OVERLAP));
+        }
+        return windows[i];
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] out = new byte[buffer.remaining()];
+        buffer.get(out);
+        return out;
+    }
+
+    /** Binary search of the mapped index. */
+    private long find(String hash) {
+        byte[] key = fromHex(hash);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int base = HEADER + mid * INDEX_RECORD;
+            int cmp = 0;
+            for (int i = 0; i < 32 && cmp == 0; i++) {
+                cmp = Integer.compare(index.get(base + i) & 0xFF, key[i] & 0xFF);
+            }
+            if (cmp == 0) {
+                return index.getLong(base + 32);
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pack.close();
+    }
+
+    /**
+     * Writes a new pack. Objects are appended one at a time and the index is written
+     * by finish().
+     */
+    public static class Writer implements Closeable {
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ArrayList<Object[]> offsets = new ArrayList<Object[]>();
+        private final int level;
+        private long position;
+        private long bytes;
+
+        /**
+         * @param packPath
+         * @param level Deflate level for whole objects, 0 to store them uncompressed.
+         * @throws IOException
+         */
+        public Writer(Path packPath, int level) throws IOException {
+            this.level = level;
+            file = new FileOutputStream(packPath.toFile());
+            out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(0x4150434B);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            position = HEADER;
+        }
+
+        /**
+         * Adds an object stored whole, copying length bytes from in. It is compressed
+         * if that saves enough space.
+         */
+        public void addFull(String hash, InputStream in, long length) throws IOException {
+            if (level > 0 && length <= MAX_DEFLATED) {
+                byte[] content = in.readNBytes((int) length);
+                if (content.length != length) {
+                    throw new IOException("Object " + hash + " is shorter than expected");
+                }
+                byte[] deflated = deflate(content);
+                offsets.add(new Object[] {hash, position});
+                byte[] payload = deflated.length <= length - length / 16 ? deflated : content;
+                out.writeByte(payload == deflated ? DEFLATED : FULL);
+                out.writeLong(length);
+                out.writeLong(payload.length);
+                out.write(payload);
+                position += 17 + payload.length;
+                bytes += length;
+                return;
+            }
+            offsets.add(new Object[] {hash, position});
+            out.writeByte(FULL);
+            out.writeLong(length);
+            out.writeLong(length);
+            byte[] buffer = new byte[1 << 16];
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) {
+                    throw new IOException("Object " + hash + " is shorter than expected");
+                }
+                out.write(buffer, 0, n);
+                left -= n;
+            }
+            position += 17 + length;
+            bytes += length;
+        }
+
+        private byte[] deflate(byte[] content) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+                byte[] buffer = new byte[1 << 16];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /** Adds an object stored as a delta against base, which must be in this pack too. */
+        public void addDelta(String hash, long length, String base, byte[] delta)
+                throws IOException {
+            offsets.add(new Object[] {hash, position});
+            out.writeByte(DELTA);
+            out.writeLong(length);
+            out.write(fromHex(base));
+            out.writeLong(delta.length);
+            out.write(delta);
+            position += 49 + delta.length;
+            bytes += length;
+        }
+
+        /** @return total content length of the objects added, before deltas. */
+        public long contentBytes() {
+            return bytes;
+        }
+
+        /** @return bytes written to the pack so far. */
+        public long packBytes() {
+            return position;
+        }
+
+        /**
+         * Completes the pack and writes its sorted index.
+         * @param indexPath
+         * @throws IOException
+         */
+        public void finish(Path indexPath) throws IOException {
+            out.flush();
+            file.getChannel().write(ByteBuffer.allocate(4).putInt(0, offsets.size()), 8);
+            file.getFD().sync();
+            Collections.sort(offsets, new Comparator<Object[]>() {
+                @Override
+                public int compare(Object[] a, Object[] b) {
+                    return ((String) a[0]).compareTo((String) b[0]);
+                }
+            });
+            FileOutputStream idxFile = new FileOutputStream(indexPath.toFile());
+            try (DataOutputStream idx = new DataOutputStream(
+                    new BufferedOutputStream(idxFile, 1 << 16))) {
+                idx.writeInt(0x41504958);
+                idx.writeInt(VERSION);
+                idx.writeInt(offsets.size());
+                for (Object[] entry : offsets) {
+                    idx.write(fromHex((String) entry[0]));
+                    idx.writeLong((Long) entry[1]);
+                }
+                idx.flush();
+                idxFile.getFD().sync();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Streams a region of a file through successive memory-mapped windows. */
+    private static class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private ByteBuffer window;
+
+        MappedInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        /* Streams a region that is already mapped. */
+        MappedInputStream(ByteBuffer region) {
+            this.channel = null;
+            this.window = region;
+        }
+
+        private boolean fill() throws IOException {
+            if (window != null && window.hasRemaining()) {
+                return true;
+            } else if (remaining == 0) {
+                return false;
+            }
+            int n = (int) Math.min(WINDOW, remaining);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, n);
+            position += n;
+            remaining -= n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? window.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+    }
+
+    private static byte[] fromHex(String hash) {
+        byte[] out = new byte[hash.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    private static String toHex(byte[] raw) {
+        StringBuilder sb = new StringBuilder(raw.length * 2);
+        for (byte b : raw) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,625 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the binary snapshot of a CommitTree.
+ *
+ * Layout (integers are unsigned LEB128 varints unless marked as fixed 4 byte ints,
+ * strings are a byte length and UTF-8 bytes):
+ *   "ANKG" version
+ *   lastcommitID
+ *   branches:      count, then (name, commit ID) pairs
+ *   current branch
+ *   commits:       one record per commit, in ID order:
+ *                  parent ID + 1 (0 for none), generation, skip ID, date, message,
+ *                  kind (0: files changed from the parent's, 1: all files),
+ *                  number of changed files, (path number, version) pairs,
+ *                  number of removed files, path numbers
+ *   ID table:      for every ID up to lastcommitID, the fixed int position of its
+ *                  record, or 0 if there is no such commit
+ *   message index: count, then (message, id count, ids)
+ *   path table:    count, the fixed int offset of every path from the end of these
+ *                  offsets, then the paths
+ *   trailer:       fixed int positions of the ID table, the message index and the
+ *                  path table
+ * Every path is stored once in the path table, and a version that is a blob hash is
+ * stored as 0 and its 32 raw bytes; any other version is stored as its byte length
+ * + 1 and UTF-8 bytes. Positions are ints because the file is mapped as one buffer,
+ * so writing a snapshot that would pass 2 GB fails rather than wrapping them.
+ * The file is mapped into memory and nothing but the branches is read up front: a
+ * commit is read through the ID table when it is first looked up, its files when they
+ * are first used, and the message index when a message is first looked up. A commit's
+ * files are stored as the changes from its parent's, except that every so often all
+ * of them are stored, so that reading any commit's files takes at most about twice as
+ * long as reading a full list. The generation and skip of every commit are kept for
+ * CommitGraph, so that finding a split point only reads the commits it passes.
+ *
+ * Version 1 to 3 files, which held every commit's files as changes from its parent's
+ * and were read whole, are still read; their trees are kept in memory until they are
+ * written again. Version 4 files, which stored paths and hex hashes inline as strings
+ * and had no path table, are read lazily like current ones.
+ */
+public class SnapshotFile {
+
+    private static final byte[] MAGIC = {'A', 'N', 'K', 'G'};
+    private static final int VERSION = 5;
+    /* The first version read lazily, with paths and hashes stored as strings. */
+    private static final int LAZY_VERSION = 4;
+    private static final int STRING_ID_VERSION = 1;
+    /* Versions before 3 were written with a message index missing the first ID of
+     * every message; theirs is rebuilt from the commits instead. */
+    private static final int COMPLETE_MESSAGES_VERSION = 3;
+    private static final byte CHANGED_FILES = 0;
+    private static final byte ALL_FILES = 1;
+    /* A commit's files are stored in full once the changes to read on the way to them
+     * from the last full list would pass this many, or the number of files. */
+    private static final int MAX_CHANGE_CHAIN = 64;
+
+    private static final int HASH_BYTES = 32;
+
+    private final String path;
+    private final ByteBuffer data;
+    private final int version;
+    private final int tablePosition;
+    private final int messagePosition;
+    /* Position of the path table's offsets, or -1 in a version 4 file. */
+    private final int pathPosition;
+    /* Paths read from the path table so far, shared by every manifest read. */
+    private final String[] paths;
+    private final long lastcommitID;
+
+    private SnapshotFile(String path, ByteBuffer data, int version) throws IOException {
+        this.path = path;
+        this.data = data;
+        this.version = version;
+        int trailer = version == LAZY_VERSION ? 8 : 12;
+        if (data.capacity() < trailer) {
+            throw new IOException(path + " is truncated");
+        }
+        tablePosition = data.getInt(data.capacity() - trailer);
+        messagePosition = data.getInt(data.capacity() - trailer + 4);
+        if (version == LAZY_VERSION) {
+            pathPosition = -1;
+            paths = null;
+        } else {
+            ByteBuffer table = at(data.getInt(data.capacity() - 4));
+            paths = new String[readVarInt(table)];
+            pathPosition = table.position();
+        }
+        ByteBuffer in = at(MAGIC.length);
+        readVarInt(in);
+        lastcommitID = readVarLong(in);
+    }
+
+    /**
+     * Writes the tree to the given path. Commits of a lazily read tree are read from 
+     * its snapshot in turn, so memory use stays within the tree's cache.
+     * @param tree
+     * @param path
+     * @throws IOException
+     */
+    public static void write(CommitTree tree, String path) throws IOException {
+        long last = tree.lastcommitID;
+        if (last >= Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many commits for a snapshot");
+        }
+        int[] positions = new int[(int) last + 1];
+        /* Changes read on the way to each commit's files from the last full list. */
+        int[] chain = new int[(int) last + 1];
+        /* Number of every path in the path table, in the order first written. */
+        LinkedHashMap<String, Integer> paths = new LinkedHashMap<String, Integer>();
+        FileOutputStream file = new FileOutputStream(path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.write(MAGIC);
+            writeVarInt(out, VERSION);
+            writeVarLong(out, last);
+            writeVarInt(out, tree.getAllBranches().size());
+            for (String branch : tree.getAllBranches()) {
+                writeString(out, branch);
+                writeVarLong(out, tree.getBranchHead(branch).commitID);
+            }
+            writeString(out, tree.getCurrentBranch());
+            CommitGraph graph = tree.getGraph();
+            for (long id = 0; id <= last; id++) {
+                Commit c = tree.getCommitWithID(id);
+                if (c == null) {
+                    continue;
+                }
+                positions[(int) id] = position(out);
+                Commit parent = c.getParent();
+                Manifest files = c.getFileHistory();
+                HashMap<String, String> changes = null;
+                if (parent != null && positions[(int) parent.commitID] != 0) {
+                    changes = Manifest.changes(parent.getFileHistory(), files);
+                    int length = chain[(int) parent.commitID] + changes.size();
+                    if (length <= Math.max(MAX_CHANGE_CHAIN, files.size())) {
+                        chain[(int) id] = length;
+                    } else {
+                        changes = null;
+                    }
+                }
+                writeVarLong(out, parent == null ? 0 : parent.commitID + 1);
+                writeVarInt(out, graph.generation(c));
+                writeVarLong(out, c.jumpID);
+                writeString(out, c.dateCommitted);
+                writeString(out, c.commitMessage);
+                if (changes == null) {
+                    out.writeByte(ALL_FILES);
+                    writeVarInt(out, files.size());
+                    for (Map.Entry<String, String> entry : files.entrySet()) {
+                        writePath(out, paths, entry.getKey());
+                        writeVersion(out, entry.getValue());
+                    }
+                    writeVarInt(out, 0);
+                    continue;
+                }
+                out.writeByte(CHANGED_FILES);
+                int removed = 0;
+                for (String hash : changes.values()) {
+                    if (hash == null) {
+                        removed += 1;
+                    }
+                }
+                writeVarInt(out, changes.size() - removed);
+                for (Map.Entry<String, String> entry : changes.entrySet()) {
+                    if (entry.getValue() != null) {
+                        writePath(out, paths, entry.getKey());
+                        writeVersion(out, entry.getValue());
+                    }
+                }
+                writeVarInt(out, removed);
+                for (Map.Entry<String, String> entry : changes.entrySet()) {
+                    if (entry.getValue() == null) {
+                        writePath(out, paths, entry.getKey());
+                    }
+                }
+            }
+            int table = position(out);
+            for (int position : positions) {
+                out.writeInt(position);
+            }
+            int messagesAt = position(out);
+            Map<String, ArrayList<Long>> messages = tree.getMessageIndex();
+            writeVarInt(out, messages.size());
+            for (Map.Entry<String, ArrayList<Long>> entry : messages.entrySet()) {
+                writeString(out, entry.getKey());
+                writeVarInt(out, entry.getValue().size());
+                for (long id : entry.getValue()) {
+                    writeVarLong(out, id);
+                }
+            }
+            int pathsAt = position(out);
+            writeVarInt(out, paths.size());
+            /* The offsets are relative to the end of the offset table. */
+            int offset = 0;
+            for (String p : paths.keySet()) {
+                out.writeInt(offset);
+                int length = p.getBytes(StandardCharsets.UTF_8).length;
+                offset += varIntLength(length) + length;
+            }
+            for (String p : paths.keySet()) {
+                writeString(out, p);
+            }
+            out.writeInt(table);
+            out.writeInt(messagesAt);
+            out.writeInt(pathsAt);
+            position(out);
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads a tree from the given path. A current snapshot is mapped and only its 
+     * branches are read; its commits are read as the tree needs them.
+     * @param path
+     * @return the tree stored at path.
+     * @throws IOException if the file is not a snapshot of a supported version.
+     */
+    public static CommitTree read(String path) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (data.get(i) != MAGIC[i]) {
+                    throw new IOException(path + " is not an AnkGit snapshot");
+                }
+            }
+            ByteBuffer in = data.duplicate();
+            in.position(MAGIC.length);
+            int version = readVarInt(in);
+            if (version < LAZY_VERSION) {
+                return readWhole(path);
+            }
+            if (version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            SnapshotFile snapshot = new SnapshotFile(path, data, version);
+            in.position(MAGIC.length);
+            readVarInt(in);
+            readVarLong(in);
+            int branchCount = readVarInt(in);
+            LinkedHashMap<String, Long> branches = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < branchCount; i++) {
+                String name = readString(in);
+                branches.put(name, readVarLong(in));
+            }
+            CommitTree tree = new CommitTree(readString(in), snapshot.lastcommitID, snapshot);
+            for (Map.Entry<String, Long> entry : branches.entrySet()) {
+                tree.restoreBranch(entry.getKey(), entry.getValue());
+            }
+            return tree;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    /**
+     * Reads one commit, without its files.
+     * @param id
+     * @return the commit, or null if the snapshot has none with that ID.
+     * @throws IOException
+     */
+    public Commit readCommit(long id) throws IOException {
+        if (id < 0 || id > lastcommitID) {
+            return null;
+        }
+        try {
+            int position = data.getInt(tablePosition + 4 * (int) id);
+            if (position == 0) {
+                return null;
+            }
+            ByteBuffer in = at(position);
+            long parentID = readVarLong(in) - 1;
+            int generation = readVarInt(in);
+            long jumpID = readVarLong(in);
+            String date = readString(in);
+            Commit c = new Commit(id, readString(in), parentID, null, date);
+            c.generation = generation;
+            c.jumpID = jumpID;
+            return c;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    /**
+     * Reads the files of a commit. The records from the commit back to the first one 
+     * whose files are stored in full, or already in memory in the tree, are applied 
+     * in turn.
+     * @param id
+     * @param tree the tree read from this snapshot.
+     * @return the commit's files.
+     * @throws IOException
+     */
+    public Manifest readFiles(long id, CommitTree tree) throws IOException {
+        try {
+            ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+            Manifest files = Manifest.EMPTY;
+            for (long at = id; at >= 0; ) {
+                ByteBuffer in = at(data.getInt(tablePosition + 4 * (int) at));
+                long parentID = readVarLong(in) - 1;
+                readVarInt(in);
+                readVarLong(in);
+                skipString(in);
+                skipString(in);
+                boolean all = in.get() == ALL_FILES;
+                records.add(in);
+                if (all) {
+                    break;
+                }
+                Manifest resident = tree.residentFiles(parentID);
+                if (resident != null) {
+                    files = resident;
+                    break;
+                }
+                at = parentID;
+            }
+            for (int i = records.size() - 1; i >= 0; i--) {
+                ByteBuffer in = records.get(i);
+                int changed = readVarInt(in);
+                for (int j = 0; j < changed; j++) {
+                    String fileName = readPath(in);
+                    files = files.with(fileName, readVersion(in));
+                }
+                int removed = readVarInt(in);
+                for (int j = 0; j < removed; j++) {
+                    files = files.without(readPath(in));
+                }
+            }
+            return files;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    /**
+     * Reads the map from commit messages to the IDs of the commits with them.
+     * @return the map.
+     * @throws IOException
+     */
+    public HashMap<String, ArrayList<Long>> readMessages() throws IOException {
+        try {
+            ByteBuffer in = at(messagePosition);
+            int count = readVarInt(in);
+            HashMap<String, ArrayList<Long>> messages = new HashMap<String, ArrayList<Long>>();
+            for (int i = 0; i < count; i++) {
+                String message = readString(in);
+                int idCount = readVarInt(in);
+                ArrayList<Long> ids = new ArrayList<Long>(idCount);
+                for (int j = 0; j < idCount; j++) {
+                    ids.add(readVarLong(in));
+                }
+                messages.put(message, ids);
+            }
+            return messages;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    /* Reads a path, from the path table unless this is a version 4 file. */
+    private String readPath(ByteBuffer in) throws IOException {
+        if (paths == null) {
+            return readString(in);
+        }
+        int n = readVarInt(in);
+        String p = paths[n];
+        if (p == null) {
+            int offsets = pathPosition + 4 * paths.length;
+            p = readString(at(offsets + data.getInt(pathPosition + 4 * n)));
+            paths[n] = p;
+        }
+        return p;
+    }
+
+    /* Reads a file version, a raw hash or a string unless this is a version 4 file. */
+    private String readVersion(ByteBuffer in) throws IOException {
+        if (version == LAZY_VERSION) {
+            return readString(in);
+        }
+        int length = readVarInt(in);
+        if (length == 0) {
+            byte[] hash = new byte[HASH_BYTES];
+            in.get(hash);
+            return BlobStore.toHex(hash);
+        }
+        byte[] bytes = new byte[length - 1];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* A view of the file from the given position on, for one reader. */
+    private ByteBuffer at(int position) {
+        ByteBuffer in = data.duplicate();
+        in.position(position);
+        return in;
+    }
+
+    /**
+     * Reads a whole version 1 to 3 snapshot into memory.
+     */
+    private static CommitTree readWhole(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException(path + " is not an AnkGit snapshot");
+                }
+            }
+            int version = readVarInt(in);
+            if (version < STRING_ID_VERSION || version >= LAZY_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            String[] strings = new String[readVarInt(in)];
+            byte[] buf = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = readVarInt(in);
+                if (length > buf.length) {
+                    buf = new byte[Math.max(length, buf.length * 2)];
+                }
+                in.readFully(buf, 0, length);
+                strings[i] = new String(buf, 0, length, StandardCharsets.UTF_8);
+            }
+            boolean stringIDs = version == STRING_ID_VERSION;
+            long lastcommitID = readVarLong(in);
+            Commit[] commits = new Commit[readVarInt(in)];
+            int[] parents = new int[commits.length];
+            for (int i = 0; i < commits.length; i++) {
+                long id = stringIDs ? Long.parseLong(strings[readVarInt(in)]) : readVarLong(in);
+                parents[i] = readVarInt(in) - 1;
+                String date = strings[readVarInt(in)];
+                String message = strings[readVarInt(in)];
+                Manifest files = parents[i] >= 0 ? commits[parents[i]].fileHistory : Manifest.EMPTY;
+                int changed = readVarInt(in);
+                for (int j = 0; j < changed; j++) {
+                    String fileName = strings[readVarInt(in)];
+                    files = files.with(fileName, strings[readVarInt(in)]);
+                }
+                int removed = readVarInt(in);
+                for (int j = 0; j < removed; j++) {
+                    files = files.without(strings[readVarInt(in)]);
+                }
+                long parentID = parents[i] >= 0 ? commits[parents[i]].commitID : -1;
+                commits[i] = new Commit(id, message, parentID, files, date);
+            }
+            int branchCount = readVarInt(in);
+            LinkedHashMap<String, Commit> branches = new LinkedHashMap<String, Commit>();
+            for (int i = 0; i < branchCount; i++) {
+                String name = strings[readVarInt(in)];
+                branches.put(name, commits[readVarInt(in)]);
+            }
+            String currentBranch = strings[readVarInt(in)];
+            CommitTree tree = new CommitTree(currentBranch, lastcommitID);
+            for (Commit c : commits) {
+                tree.restoreCommit(c);
+            }
+            for (Map.Entry<String, Commit> entry : branches.entrySet()) {
+                tree.restoreBranch(entry.getKey(), entry.getValue().commitID);
+            }
+            int messageCount = readVarInt(in);
+            for (int i = 0; i < messageCount; i++) {
+                String message = strings[readVarInt(in)];
+                int idCount = readVarInt(in);
+                ArrayList<Long> ids = new ArrayList<Long>(idCount);
+                for (int j = 0; j < idCount; j++) {
+                    ids.add(stringIDs ? Long.parseLong(strings[readVarInt(in)]) : readVarLong(in));
+                }
+                tree.getMessageIndex().put(message, ids);
+            }
+            if (version < COMPLETE_MESSAGES_VERSION) {
+                tree.rebuildMessageIndex();
+            }
+            return tree;
+        } catch (EOFException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @return the current position in out, which DataOutputStream stops counting at 
+     * 2 GB; a snapshot that large could not be mapped as one buffer anyway.
+     */
+    private static int position(DataOutputStream out) throws IOException {
+        int position = out.size();
+        if (position == Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large: more than 2 GB");
+        }
+        return position;
+    }
+
+    private static void writePath(DataOutputStream out, Map<String, Integer> paths, String p) 
+            throws IOException {
+        Integer n = paths.get(p);
+        if (n == null) {
+            n = paths.size();
+            paths.put(p, n);
+        }
+        writeVarInt(out, n);
+    }
+
+    private static void writeVersion(DataOutputStream out, String version) throws IOException {
+        if (BlobStore.isHash(version)) {
+            writeVarInt(out, 0);
+            out.write(BlobStore.fromHex(version));
+            return;
+        }
+        byte[] bytes = version.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length += 1;
+        }
+        return length;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in);
+        in.position(in.position() + length);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
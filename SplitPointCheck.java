@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Checks findSplitPoint, which uses CommitGraph, against the walk it replaced: both
+ * histories followed back one commit at a time until one reaches a commit the other
+ * has passed.
+ *
+ * Usage: java SplitPointCheck [-commits n] [-queries n]
+ *
+ * Four histories of -commits commits (5000 by default) are generated, each commit on a
+ * random earlier one, mostly the newest, with a new root now and then. Each gets a
+ * quarter of -queries random pairs of commits (20000 by default) set as two branch
+ * heads. The first history is only queried. In the second, commits are moved onto
+ * other parents between queries, as rebase does. The third and fourth are written as
+ * snapshots and read back lazily with a small commit cache before being queried the
+ * same two ways, so that stored generations and skips are used until a parent changes.
+ * It prints one line per history and exits with status 1 if any split point differs.
+ */
+public class SplitPointCheck {
+
+    private static final long SEED = 20141107L;
+
+    private final Random random = new Random(SEED);
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        int commits = 5000;
+        int queries = 20000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            try {
+                if (args[i].equals("-commits")) {
+                    commits = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-queries")) {
+                    queries = Integer.parseInt(args[i + 1]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(2);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number: " + args[i + 1]);
+                System.exit(2);
+            }
+        }
+        if (args.length % 2 != 0 || commits < 2) {
+            System.out.println("Usage: java SplitPointCheck [-commits n] [-queries n]");
+            System.exit(2);
+        }
+        System.setProperty("ankgit.commitCache", "64");
+        SplitPointCheck check = new SplitPointCheck();
+        int each = Math.max(1, queries / 4);
+        check.run("built", check.generate(commits), each, false);
+        check.run("built, rebased", check.generate(commits), each, true);
+        check.run("snapshot", check.reload(check.generate(commits)), each, false);
+        check.run("snapshot, rebased", check.reload(check.generate(commits)), each, true);
+        System.out.println(check.failures == 0 ? "PASSED" : "FAILED");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    /** Builds a tree of the given number of commits, on random earlier commits. */
+    private CommitTree generate(int commits) {
+        CommitTree tree = new CommitTree();
+        Commit newest = tree.getHeadCommit();
+        for (long id = 1; id < commits; id++) {
+            Commit parent;
+            int pick = random.nextInt(100);
+            if (pick < 80) {
+                parent = newest;
+            } else if (pick < 99) {
+                parent = tree.getCommitWithID(random.nextInt((int) id));
+            } else {
+                parent = null;
+            }
+            newest = new Commit(id, "commit " + id, parent, null);
+            tree.addCommit(newest);
+        }
+        return tree;
+    }
+
+    /** Writes the tree as a snapshot and reads it back lazily. */
+    private CommitTree reload(CommitTree tree) throws IOException {
+        File file = File.createTempFile("ankgit-split", ".snapshot");
+        try {
+            SnapshotFile.write(tree, file.getPath());
+            return SnapshotFile.read(file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Compares findSplitPoint with the old walk on random pairs of commits, moving a
+     * random commit onto a new parent before every tenth query if rebase is set.
+     */
+    private void run(String name, CommitTree tree, int queries, boolean rebase) {
+        int commits = (int) tree.lastcommitID + 1;
+        int moved = 0;
+        int wrong = 0;
+        for (int q = 0; q < queries; q++) {
+            if (rebase && q % 10 == 0 && move(tree, commits)) {
+                moved += 1;
+            }
+            Commit a = tree.getCommitWithID(random.nextInt(commits));
+            Commit b = tree.getCommitWithID(random.nextInt(commits));
+            tree.setBranchHead("one", a.commitID);
+            tree.setBranchHead("two", b.commitID);
+            Commit found = tree.findSplitPoint("one", "two");
+            Commit expected = walk(a, b);
+            long foundID = found == null ? -1 : found.commitID;
+            long expectedID = expected == null ? -1 : expected.commitID;
+            if (foundID != expectedID) {
+                if (wrong < 10) {
+                    System.out.println("Split point of " + a.commitID + " and " + b.commitID
+                            + " is " + expectedID + ", not " + foundID);
+                }
+                wrong += 1;
+            }
+        }
+        failures += wrong;
+        System.out.println((wrong == 0 ? "ok   " : "FAIL ") + name + ": " + commits
+                + " commits, " + queries + " queries, " + moved + " commits moved"
+                + (wrong == 0 ? "" : ", " + wrong + " wrong"));
+    }
+
+    /**
+     * Moves a random commit onto a random commit that does not descend from it.
+     * @return true if a commit was moved.
+     */
+    private boolean move(CommitTree tree, int commits) {
+        Commit c = tree.getCommitWithID(1 + random.nextInt(commits - 1));
+        Commit parent = tree.getCommitWithID(random.nextInt(commits));
+        for (Commit a = parent; a != null; a = a.getParent()) {
+            if (a.commitID == c.commitID) {
+                return false;
+            }
+        }
+        tree.setParent(c, parent);
+        return true;
+    }
+
+    /** The split point as findSplitPoint found it before CommitGraph. */
+    private static Commit walk(Commit c1, Commit c2) {
+        HashSet<Long> history1 = new HashSet<Long>();
+        HashSet<Long> history2 = new HashSet<Long>();
+        while (true) {
+            if (c1.commitID == c2.commitID || history2.contains(c1.commitID)) {
+                return c1;
+            } else if (history1.contains(c2.commitID)) {
+                return c2;
+            }
+            history1.add(c1.commitID);
+            history2.add(c2.commitID);
+            Commit p1 = c1.getParent();
+            Commit p2 = c2.getParent();
+            if (p1 == null && p2 == null) {
+                return null;
+            }
+            if (p1 != null) {
+                c1 = p1;
+            }
+            if (p2 != null) {
+                c2 = p2;
+            }
+        }
+    }
+}
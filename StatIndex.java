@@ -0,0 +1,181 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the size, modification time, file key (inode) and content hash of working
+ * directory files, like git's index. When a file's metadata still matches what was
+ * recorded, its hash is taken from here instead of reading the file again.
+ *
+ * Racy timestamps: a file modified within the timestamp granularity of the moment it
+ * was recorded could change again without its mtime moving. Such entries are never
+ * trusted: an entry only counts when its mtime is older than the index file itself,
+ * and entries this close to the time of saving are marked so the next lookup
+ * re-hashes them once more.
+ *
+ * Lookups and updates may come from several threads at once; hashing a file happens
+ * outside the lock.
+ */
+public class StatIndex {
+
+    private static final byte[] MAGIC = {'A', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    /* Files modified this close to a save are treated as racily clean. */
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final String path;
+    private final HashMap<String, Entry> entries;
+    /* Modification time of the index file when it was loaded. */
+    private long indexTime;
+    private boolean dirty;
+
+    private static class Entry {
+        long size;
+        long mtime;
+        String fileKey;
+        String hash;
+        boolean racy;
+    }
+
+    /**
+     * Loads the index stored at path, or starts an empty one if there is none or it
+     * cannot be read (the index is only a cache, so losing it costs time, not data).
+     * @param path absolute path of the index file.
+     */
+    public StatIndex(String path) {
+        this.path = path;
+        entries = new HashMap<String, Entry>();
+        File f = new File(path);
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            indexTime = Files.getLastModifiedTime(f.toPath()).to(TimeUnit.NANOSECONDS);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]
+                    || magic[3] != MAGIC[3] || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                Entry e = new Entry();
+                e.size = in.readLong();
+                e.mtime = in.readLong();
+                e.fileKey = in.readUTF();
+                e.hash = in.readUTF();
+                e.racy = in.readBoolean();
+                entries.put(fileName, e);
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the hash of a working directory file, reading and hashing its contents
+     * only if its metadata differs from what was recorded for it.
+     * @param fileName name relative to the repository root.
+     * @param file location of the file.
+     * @return hex encoded hash of the file's bytes.
+     * @throws IOException
+     */
+    public String hash(String fileName, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(fileName);
+        }
+        if (e != null && !e.racy && matches(e, attrs) && e.mtime < indexTime) {
+            return e.hash;
+        }
+        String hash = BlobStore.hash(file);
+        record(fileName, attrs, hash);
+        return hash;
+    }
+
+    /**
+     * Records that a file was just written with content of the given hash, e.g. by
+     * checkout, so a later add does not have to read it again.
+     * @param fileName
+     * @param file
+     * @param hash
+     * @throws IOException
+     */
+    public void update(String fileName, Path file, String hash) throws IOException {
+        record(fileName, Files.readAttributes(file, BasicFileAttributes.class), hash);
+    }
+
+    /** Forgets a file, e.g. after it was deleted from the working directory. */
+    public synchronized void remove(String fileName) {
+        if (entries.remove(fileName) != null) {
+            dirty = true;
+        }
+    }
+
+    private synchronized void record(String fileName, BasicFileAttributes attrs, String hash) {
+        Entry e = new Entry();
+        e.size = attrs.size();
+        e.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        e.fileKey = String.valueOf(attrs.fileKey());
+        e.hash = hash;
+        entries.put(fileName, e);
+        dirty = true;
+    }
+
+    private static boolean matches(Entry e, BasicFileAttributes attrs) {
+        return e.size == attrs.size()
+                && e.mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                && e.fileKey.equals(String.valueOf(attrs.fileKey()));
+    }
+
+    /**
+     * Writes the index back if anything was recorded since it was loaded. Entries whose
+     * files were modified within RACY_WINDOW_NANOS of now are marked racy.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeUTF(e.fileKey);
+                out.writeUTF(e.hash);
+                e.racy = e.mtime >= now - RACY_WINDOW_NANOS;
+                out.writeBoolean(e.racy);
+            }
+        }
+        Files.move(tmp, Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        /* Kept in memory (by the daemon), the index must trust exactly what a fresh 
+         * load of the file just written would. */
+        indexTime = Files.getLastModifiedTime(Paths.get(path)).to(TimeUnit.NANOSECONDS);
+        dirty = false;
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records where a command spends its time. A command is divided into nested phases
+ * (loading the snapshot, reading the staging area, writing files, ...), each opened
+ * with phase() and closed by a try-with-resources block; for every phase the wall
+ * time, the bytes read and written, the files touched and the bytes allocated are
+ * kept, and on exit report() prints them to stderr. The phase is declared before the
+ * block, as in "Trace.Phase phase = Trace.phase(name); try (phase) { ... }", since
+ * javac -Xlint warns about a resource declared in the try that the body never uses.
+ *
+ * Tracing is turned on by the --trace option ("--trace=json" for one JSON line
+ * instead of text), the ankgit.trace system property or the ANKGIT_TRACE environment
+ * variable ("text" or "json"). Every phase is also committed as an "ankgit.Phase" JFR
+ * event whenever a flight recording is running, with or without --trace. When neither
+ * is on, phase() hands out one shared closed phase and the counters return after a
+ * single volatile read, so the cost is a few instructions per call.
+ *
+ * Phases are opened and closed on the thread running the command; bytes and files
+ * counted on worker threads go to whatever phase is open at the time. Allocation is
+ * that of the command's thread only.
+ */
+public class Trace {
+
+    private static final Phase NONE = new Phase(null, null);
+    /* "text", "json", or null when not reporting. */
+    private static String format;
+    /* Innermost open phase, or null when nothing is being recorded. */
+    private static volatile Phase current;
+    private static final List<Phase> finished = new ArrayList<Phase>();
+    private static com.sun.management.ThreadMXBean threads;
+
+    /**
+     * Turns reporting on or off from an option value or setting.
+     * @param setting "json", "text", or anything else that is not "0", "false" or
+     * "off" for text; null reads ankgit.trace and ANKGIT_TRACE instead.
+     */
+    public static void configure(String setting) {
+        if (setting == null) {
+            setting = System.getProperty("ankgit.trace");
+            if (setting == null) {
+                setting = System.getenv("ANKGIT_TRACE");
+            }
+        }
+        if (setting == null || setting.isEmpty() || setting.equals("0")
+                || setting.equalsIgnoreCase("false") || setting.equalsIgnoreCase("off")) {
+            format = null;
+        } else {
+            format = setting.equalsIgnoreCase("json") ? "json" : "text";
+        }
+    }
+
+    /** @return true if a report will be printed. */
+    public static boolean isReporting() {
+        return format != null;
+    }
+
+    /**
+     * Opens a phase nested in the currently open one.
+     * @param name
+     * @return the phase, to be closed when it ends.
+     */
+    public static Phase phase(String name) {
+        PhaseEvent event = new PhaseEvent();
+        if (format == null && !event.isEnabled()) {
+            return NONE;
+        }
+        Phase phase = new Phase(name, current);
+        phase.event = event;
+        event.begin();
+        current = phase;
+        return phase;
+    }
+
+    /** Counts bytes read in the open phase. */
+    public static void read(long bytes) {
+        Phase p = current;
+        if (p != null) {
+            p.add(bytes, 0, 0);
+        }
+    }
+
+    /** Counts bytes written in the open phase. */
+    public static void wrote(long bytes) {
+        Phase p = current;
+        if (p != null) {
+            p.add(0, bytes, 0);
+        }
+    }
+
+    /** Counts a file read in full, by its size, in the open phase. */
+    public static void readFile(String path) {
+        Phase p = current;
+        if (p != null) {
+            p.add(new File(path).length(), 0, 1);
+        }
+    }
+
+    /** Counts a file written in full, by its size, in the open phase. */
+    public static void wroteFile(String path) {
+        Phase p = current;
+        if (p != null) {
+            p.add(0, new File(path).length(), 1);
+        }
+    }
+
+    /** Counts files touched (written, deleted or read) in the open phase. */
+    public static void touched(long files) {
+        Phase p = current;
+        if (p != null) {
+            p.add(0, 0, files);
+        }
+    }
+
+    /**
+     * Prints the phases closed so far to the given stream, as text or as one JSON
+     * line, and forgets them. Does nothing unless reporting is on.
+     * @param err
+     */
+    public static void report(PrintStream err) {
+        if (format == null) {
+            return;
+        }
+        List<Phase> phases;
+        synchronized (finished) {
+            phases = new ArrayList<Phase>(finished);
+            finished.clear();
+        }
+        StringBuilder out = new StringBuilder();
+        if (format.equals("json")) {
+            out.append("{\"phases\":[");
+            for (int i = 0; i < phases.size(); i++) {
+                Phase p = phases.get(i);
+                out.append(i == 0 ? "{" : ",{").append("\"phase\":\"").append(escape(p.path()))
+                        .append("\",\"ms\":").append(String.format("%.3f", p.nanos / 1e6))
+                        .append(",\"read\":").append(p.read.get())
+                        .append(",\"written\":").append(p.written.get())
+                        .append(",\"files\":").append(p.files.get())
+                        .append(",\"allocated\":").append(p.allocated).append("}");
+            }
+            out.append("]}");
+        } else {
+            out.append(String.format("%-32s %10s %10s %10s %7s %10s%n", "phase", "ms",
+                    "read", "written", "files", "allocated"));
+            for (Phase p : phases) {
+                String name = p.name;
+                for (Phase a = p.parent; a != null; a = a.parent) {
+                    name = "  " + name;
+                }
+                out.append(String.format("%-32s %10.3f %10s %10s %7d %10s%n", name,
+                        p.nanos / 1e6, bytes(p.read.get()), bytes(p.written.get()),
+                        p.files.get(), bytes(p.allocated)));
+            }
+        }
+        err.println(out.toString().trim());
+        err.flush();
+    }
+
+    private static String bytes(long n) {
+        if (n < 1 << 10) {
+            return n + " B";
+        } else if (n < 1 << 20) {
+            return String.format("%.1f KB", n / 1024.0);
+        }
+        return String.format("%.1f MB", n / 1048576.0);
+    }
+
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static long allocatedBytes() {
+        if (threads == null) {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * One timed part of a command. Counts include those of the phases nested in it.
+     * Reports list phases in the order they were opened.
+     */
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final Phase parent;
+        private final long start;
+        private final long allocatedAtStart;
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private long nanos;
+        private long allocated;
+        private PhaseEvent event;
+
+        private Phase(String name, Phase parent) {
+            this.name = name;
+            this.parent = parent;
+            if (name == null) {
+                start = 0;
+                allocatedAtStart = 0;
+                return;
+            }
+            start = System.nanoTime();
+            allocatedAtStart = allocatedBytes();
+            if (format != null) {
+                synchronized (finished) {
+                    finished.add(this);
+                }
+            }
+        }
+
+        private void add(long bytesRead, long bytesWritten, long filesTouched) {
+            for (Phase p = this; p != null; p = p.parent) {
+                if (bytesRead != 0) {
+                    p.read.addAndGet(bytesRead);
+                }
+                if (bytesWritten != 0) {
+                    p.written.addAndGet(bytesWritten);
+                }
+                if (filesTouched != 0) {
+                    p.files.addAndGet(filesTouched);
+                }
+            }
+        }
+
+        private String path() {
+            return parent == null ? name : parent.path() + "/" + name;
+        }
+
+        /** Ends the phase; the enclosing phase is open again. */
+        @Override
+        public void close() {
+            if (name == null) {
+                return;
+            }
+            nanos = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocatedAtStart;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = path();
+                event.bytesRead = read.get();
+                event.bytesWritten = written.get();
+                event.filesTouched = files.get();
+                event.allocated = allocated;
+                event.commit();
+            }
+            current = parent;
+        }
+    }
+
+    @Name("ankgit.Phase")
+    @Label("AnkGit Phase")
+    @Category("AnkGit")
+    @Description("A phase of an AnkGit command")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Bytes Read")
+        @DataAmount(DataAmount.BYTES)
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount(DataAmount.BYTES)
+        long bytesWritten;
+
+        @Label("Files Touched")
+        long filesTouched;
+
+        @Label("Allocated")
+        @DataAmount(DataAmount.BYTES)
+        @Description("Bytes allocated by the command's thread")
+        long allocated;
+    }
+}